@@ -18,22 +18,105 @@
  */
 package com.redhat.lightblue.mongo.config;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
 import com.redhat.lightblue.common.mongo.DBResolver;
 import com.redhat.lightblue.config.DataSourcesConfiguration;
 import com.redhat.lightblue.config.ControllerConfiguration;
 import com.redhat.lightblue.config.ControllerFactory;
 import com.redhat.lightblue.crud.CRUDController;
 import com.redhat.lightblue.crud.mongo.MongoCRUDController;
+import com.redhat.lightblue.crud.mongo.ReplicationStatusProvider;
 
+/**
+ * Creates the mongo CRUD controller, and configures it from the
+ * controller extensions:
+ *
+ * <pre>
+ *  "extensions": {
+ *     "serverSideBulkWrites": false,
+ *     "updateThreads": 1,
+ *     "updateBatchSize": 64,
+ *     "deleteBatchSize": 64,
+ *     "iterateChunkSize": 0,
+ *     "jobCollection": "jobs",
+ *     "writeThrottle": {
+ *        "minDocsPerSec": 100,
+ *        "maxDocsPerSec": 1000,
+ *        "targetLatencyMsec": 100,
+ *        "maxLagMsec": 1000,
+ *        "replicationStatusProvider": "class name"
+ *     }
+ *  }
+ * </pre>
+ *
+ * All settings are optional, and default to the values shown, except
+ * that there is no job collection and no write throttle by default.
+ */
 public class MongoCRUDFactory implements ControllerFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoCRUDFactory.class);
+
     @Override
     public CRUDController createController(ControllerConfiguration cfg,
                                            DataSourcesConfiguration ds) {
         try {
             DBResolver resolver = new MongoDBResolver(ds);
-            return new MongoCRUDController(cfg,resolver);
+            MongoCRUDController controller = new MongoCRUDController(cfg,resolver);
+            if (cfg != null) {
+                configure(controller, cfg.getExtensions());
+            }
+            return controller;
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Sets the controller options given in the controller extensions
+     */
+    public static void configure(MongoCRUDController controller, JsonNode extensions) throws ReflectiveOperationException {
+        if (extensions == null) {
+            return;
+        }
+        LOGGER.debug("Configuring controller: {}", extensions);
+        JsonNode x = extensions.get("serverSideBulkWrites");
+        if (x != null) {
+            controller.setServerSideBulkWrites(x.asBoolean());
+        }
+        x = extensions.get("updateThreads");
+        if (x != null) {
+            controller.setUpdateThreads(x.asInt());
+        }
+        x = extensions.get("updateBatchSize");
+        if (x != null) {
+            controller.setUpdateBatchSize(x.asInt());
+        }
+        x = extensions.get("deleteBatchSize");
+        if (x != null) {
+            controller.setDeleteBatchSize(x.asInt());
+        }
+        x = extensions.get("iterateChunkSize");
+        if (x != null) {
+            controller.setIterateChunkSize(x.asInt());
+        }
+        x = extensions.get("jobCollection");
+        if (x != null) {
+            controller.setJobCollection(x.asText());
+        }
+        JsonNode throttle = extensions.get("writeThrottle");
+        if (throttle != null) {
+            controller.setWriteThrottle(throttle.path("minDocsPerSec").asInt(),
+                    throttle.path("maxDocsPerSec").asInt(),
+                    throttle.path("targetLatencyMsec").asLong(),
+                    throttle.path("maxLagMsec").asLong());
+            x = throttle.get("replicationStatusProvider");
+            if (x != null) {
+                controller.setReplicationStatusProvider(Class.forName(x.asText()).
+                        asSubclass(ReplicationStatusProvider.class).newInstance());
+            }
+        }
+    }
 }
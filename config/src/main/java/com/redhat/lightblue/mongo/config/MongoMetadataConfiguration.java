@@ -20,6 +20,8 @@ package com.redhat.lightblue.mongo.config;
 
 import org.bson.BSONObject;
 
+import com.mongodb.DB;
+
 import com.fasterxml.jackson.databind.JsonNode;
 import com.redhat.lightblue.common.mongo.DBResolver;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
@@ -46,6 +48,8 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
     private String collection;
     private Long cachePeekInterval;
     private Long cacheTTL;
+    private String cacheChangeCollection;
+    private boolean cacheRefreshAhead = true;
     
     private static final MetadataCache metadataCache=new MetadataCache();
 
@@ -80,14 +84,21 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             metadataCache.setCacheParams(cachePeekInterval,cacheTTL);
 
             try {
+                DB db = dbresolver.get(mdstore);
+                if (cacheChangeCollection != null) {
+                    metadataCache.setChangeCollection(db.getCollection(cacheChangeCollection));
+                }
                 MongoMetadata mongoMetadata = null;
                 if (collection == null) {
-                    mongoMetadata = new MongoMetadata(dbresolver.get(mdstore), parserExtensions, typeResolver, factory.getFactory(),metadataCache);
+                    mongoMetadata = new MongoMetadata(db, parserExtensions, typeResolver, factory.getFactory(),metadataCache);
                 } else {
-                    mongoMetadata = new MongoMetadata(dbresolver.get(mdstore), collection, parserExtensions, typeResolver, factory.getFactory(),metadataCache);
+                    mongoMetadata = new MongoMetadata(db, collection, parserExtensions, typeResolver, factory.getFactory(),metadataCache);
                 }
 
                 mongoMetadata.setRoleMap(getMappedRoles());
+                if (cacheRefreshAhead) {
+                    mongoMetadata.startCacheRefresh();
+                }
 
                 return mongoMetadata;
             } catch (RuntimeException re) {
@@ -153,6 +164,12 @@ public class MongoMetadataConfiguration extends AbstractMetadataConfiguration {
             x=node.get("cacheTTLMsec");
             if(x!=null)
                 cacheTTL=x.asLong();
+            x=node.get("cacheChangeCollection");
+            if(x!=null)
+                cacheChangeCollection=x.asText();
+            x=node.get("cacheRefreshAhead");
+            if(x!=null)
+                cacheRefreshAhead=x.asBoolean();
         }
     }
 }
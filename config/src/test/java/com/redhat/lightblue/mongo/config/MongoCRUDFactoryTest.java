@@ -0,0 +1,65 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.config;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.redhat.lightblue.crud.mongo.MongoCRUDController;
+import com.redhat.lightblue.crud.mongo.StubReplicationStatusProvider;
+
+public class MongoCRUDFactoryTest {
+
+    @Test
+    public void configureTest() throws Exception {
+        MongoCRUDController controller = new MongoCRUDController(null, null);
+        MongoCRUDFactory.configure(controller, new ObjectMapper().readTree("{"
+                + "\"serverSideBulkWrites\": true,"
+                + "\"updateThreads\": 4,"
+                + "\"updateBatchSize\": 32,"
+                + "\"deleteBatchSize\": 16,"
+                + "\"iterateChunkSize\": 1000,"
+                + "\"jobCollection\": \"jobs\","
+                + "\"writeThrottle\": { \"minDocsPerSec\": 10, \"maxDocsPerSec\": 100,"
+                + "   \"replicationStatusProvider\": \"" + StubReplicationStatusProvider.class.getName() + "\" }"
+                + "}"));
+        Assert.assertTrue(controller.isServerSideBulkWrites());
+        Assert.assertEquals(4, controller.getUpdateThreads());
+        Assert.assertEquals(32, controller.getUpdateBatchSize());
+        Assert.assertEquals(16, controller.getDeleteBatchSize());
+        Assert.assertEquals(1000, controller.getIterateChunkSize());
+        Assert.assertEquals("jobs", controller.getJobCollection());
+        Assert.assertTrue(controller.getReplicationStatusProvider() instanceof StubReplicationStatusProvider);
+        controller.setUpdateThreads(1);
+    }
+
+    @Test
+    public void invalidThrottleTest() throws Exception {
+        MongoCRUDController controller = new MongoCRUDController(null, null);
+        try {
+            MongoCRUDFactory.configure(controller, new ObjectMapper().readTree(
+                    "{\"writeThrottle\": { \"minDocsPerSec\": 0, \"maxDocsPerSec\": 100 } }"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        // Throttling disabled
+        controller.setWriteThrottle(0, 0, 0, 0);
+    }
+}
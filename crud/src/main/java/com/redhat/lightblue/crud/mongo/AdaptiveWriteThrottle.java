@@ -0,0 +1,127 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the number of documents written per second by a bulk
+ * operation. The rate starts at the maximum, and is adjusted after
+ * every write: it is halved if the write took longer than the target
+ * latency, or if the replication lag is over the limit, and increased
+ * by a tenth of the maximum otherwise. The rate stays between the
+ * configured bounds.
+ */
+public class AdaptiveWriteThrottle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AdaptiveWriteThrottle.class);
+
+    private final int minDocsPerSec;
+    private final int maxDocsPerSec;
+    private final long targetLatencyMsec;
+    private final long maxLagMsec;
+    private final ReplicationStatusProvider statusProvider;
+
+    private double docsPerSec;
+    private long nextWriteTime;
+
+    /**
+     * @param minDocsPerSec Minimum rate
+     * @param maxDocsPerSec Maximum rate
+     * @param targetLatencyMsec Writes taking longer than this slow down the rate. If 0, latency is ignored
+     * @param maxLagMsec Replication lag over this slows down the rate. If 0, lag is ignored
+     * @param statusProvider Replication status provider, can be null
+     */
+    public AdaptiveWriteThrottle(int minDocsPerSec,
+                                 int maxDocsPerSec,
+                                 long targetLatencyMsec,
+                                 long maxLagMsec,
+                                 ReplicationStatusProvider statusProvider) {
+        if (minDocsPerSec <= 0 || maxDocsPerSec < minDocsPerSec) {
+            throw new IllegalArgumentException("minDocsPerSec=" + minDocsPerSec + " maxDocsPerSec=" + maxDocsPerSec);
+        }
+        this.minDocsPerSec = minDocsPerSec;
+        this.maxDocsPerSec = maxDocsPerSec;
+        this.targetLatencyMsec = targetLatencyMsec;
+        this.maxLagMsec = maxLagMsec;
+        this.statusProvider = statusProvider;
+        this.docsPerSec = maxDocsPerSec;
+    }
+
+    /**
+     * Returns the current rate
+     */
+    public synchronized double getDocsPerSec() {
+        return docsPerSec;
+    }
+
+    /**
+     * Waits until n documents can be written at the current rate
+     */
+    public void acquire(int n) {
+        long waitMsec;
+        synchronized (this) {
+            long now = currentTimeMillis();
+            if (nextWriteTime < now) {
+                nextWriteTime = now;
+            }
+            waitMsec = nextWriteTime - now;
+            nextWriteTime += (long) (n * 1000.0 / docsPerSec);
+        }
+        if (waitMsec > 0) {
+            LOGGER.debug("Throttling writes for {}msec", waitMsec);
+            try {
+                sleep(waitMsec);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Adjusts the rate after writing documents
+     *
+     * @param n Number of documents written
+     * @param latencyMsec How long the write took
+     */
+    public void writeCompleted(int n, long latencyMsec) {
+        long lag = statusProvider == null || maxLagMsec <= 0 ? -1 : statusProvider.getReplicationLagMsec();
+        synchronized (this) {
+            double oldRate = docsPerSec;
+            if ((targetLatencyMsec > 0 && latencyMsec > targetLatencyMsec)
+                    || (maxLagMsec > 0 && lag > maxLagMsec)) {
+                docsPerSec = Math.max(minDocsPerSec, docsPerSec / 2);
+            } else {
+                docsPerSec = Math.min(maxDocsPerSec, docsPerSec + Math.max(1, maxDocsPerSec / 10));
+            }
+            if (oldRate != docsPerSec) {
+                LOGGER.debug("Wrote {} docs in {}msec, lag={}msec, rate {} -> {} docs/sec", n, latencyMsec, lag, oldRate, docsPerSec);
+            }
+        }
+    }
+
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void sleep(long msec) throws InterruptedException {
+        Thread.sleep(msec);
+    }
+}
@@ -47,7 +47,9 @@ import com.redhat.lightblue.util.Path;
  * Atomic updater that evaluates the query, and updates the documents one by one
  * using atomic updates
  *
- * This class is probably useless. It makes things complicated for update.
+ * This is used when the update expression can be translated to a
+ * mongo update expression, but the updated documents are still
+ * needed, for instance to evaluate the projection.
  */
 public class AtomicIterateUpdate implements DocUpdater {
 
@@ -117,10 +119,17 @@ public class AtomicIterateUpdate implements DocUpdater {
                                 mongoUpdateExpr,
                                 true,
                                 false).execute();
+                        if (modifiedDoc == null) {
+                            // Document is removed between find and update
+                            LOGGER.debug("Document {} no longer exists", docIndex);
+                            docIndex++;
+                            continue;
+                        }
+                        doc.setOutputDocument(translator.toJson(modifiedDoc));
+                        doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
                         if (projector != null) {
                             LOGGER.debug("Projecting document {}", docIndex);
-                            doc.setOutputDocument(projector.project(translator.toJson(modifiedDoc), nodeFactory));
-                            doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
+                            doc.setOutputDocument(projector.project(doc.getOutputDocument(), nodeFactory));
                         }
                         ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
                         numUpdated++;
@@ -23,6 +23,7 @@ import org.slf4j.LoggerFactory;
 
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 
 import com.redhat.lightblue.crud.CRUDDeleteResponse;
@@ -42,7 +43,7 @@ public class BasicDocDeleter implements DocDeleter {
                        DBObject mongoQuery,
                        CRUDDeleteResponse response) {
         LOGGER.debug("Removing docs with {}", mongoQuery);
-        WriteResult result = new RemoveCommand(collection, mongoQuery).execute();
+        WriteResult result = new RemoveCommand(collection, mongoQuery, WriteConcern.SAFE).execute();
         LOGGER.debug("Removal complete, write result={}", result);
         response.setNumDeleted(result.getN());
     }
@@ -0,0 +1,66 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.CRUDUpdateResponse;
+import com.redhat.lightblue.interceptor.InterceptPoint;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
+
+/**
+ * Updater that runs a single multi-document update in the database
+ * using a translated mongo update expression. The documents are never
+ * retrieved, so this can only be used if the update does not require
+ * validation, per-document access checks, or the updated documents
+ * themselves.
+ */
+public class BasicDocUpdater implements DocUpdater {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BasicDocUpdater.class);
+
+    private final DBObject mongoUpdateExpr;
+
+    public BasicDocUpdater(DBObject mongoUpdateExpr) {
+        this.mongoUpdateExpr = mongoUpdateExpr;
+    }
+
+    @Override
+    public void update(CRUDOperationContext ctx,
+                       DBCollection collection,
+                       EntityMetadata md,
+                       CRUDUpdateResponse response,
+                       DBObject query) {
+        LOGGER.debug("basicUpdate: query={} update={}", query, mongoUpdateExpr);
+        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
+        WriteResult result = new UpdateCommand(collection, query, mongoUpdateExpr, false, true, WriteConcern.SAFE).execute();
+        LOGGER.debug("Update complete, write result={}", result);
+        ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
+        response.setNumUpdated(result.getN());
+        response.setNumFailed(0);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.mongo.hystrix.FindCommand;
+import com.redhat.lightblue.mongo.hystrix.FindOneCommand;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Iterates the documents matching a query in _id order, reading them
+ * in chunks. Each chunk is read with a separate query that starts
+ * after the last _id of the previous chunk, so no cursor is kept open
+ * on the server while the documents are processed, and the iteration
+ * can be resumed from any _id.
+ *
+ * Chunks are read with {_id: {$gt: lastId}}, which only matches the
+ * _ids of the same type as lastId, so the documents matching the
+ * query must all have the same _id type. Before the first chunk is
+ * returned, the query is checked for documents with other _id types,
+ * and the iteration fails with MongoCrudConstants.ERR_MIXED_ID_TYPES
+ * if there are any, instead of skipping them.
+ *
+ * If chunk size is 0, all documents are read with a single cursor in
+ * natural order.
+ */
+public class ChunkedCursor implements Iterator<DBObject> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkedCursor.class);
+
+    private static final DBObject ID_SORT = new BasicDBObject(MongoCRUDController.ID_STR, 1);
+
+    private final DBCollection collection;
+    private final DBObject query;
+    private final DBObject projection;
+    private final int chunkSize;
+
+    private DBCursor cursor;
+    private Iterator<DBObject> chunk;
+    private boolean exhausted;
+    private Object lastId;
+    private int numChunks;
+    private boolean idTypesChecked;
+
+    /**
+     * @param collection The collection
+     * @param query The query
+     * @param projection Optional projection, must include _id
+     * @param chunkSize Maximum number of documents read at once. If 0, a single cursor is used
+     * @param startAfterId If not null, iteration starts after the document with this _id
+     */
+    public ChunkedCursor(DBCollection collection,
+                         DBObject query,
+                         DBObject projection,
+                         int chunkSize,
+                         Object startAfterId) {
+        this.collection = collection;
+        this.query = query;
+        this.projection = projection;
+        this.chunkSize = chunkSize;
+        this.lastId = startAfterId;
+    }
+
+    /**
+     * Returns the _id of the last document returned by next()
+     */
+    public Object getLastId() {
+        return lastId;
+    }
+
+    /**
+     * Returns the number of chunks read so far
+     */
+    public int getNumChunks() {
+        return numChunks;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (chunkSize <= 0) {
+            if (cursor == null) {
+                cursor = new FindCommand(collection, query, projection).execute();
+            }
+            return cursor.hasNext();
+        } else {
+            while ((chunk == null || !chunk.hasNext()) && !exhausted) {
+                readChunk();
+            }
+            return chunk != null && chunk.hasNext();
+        }
+    }
+
+    @Override
+    public DBObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        DBObject doc = chunkSize <= 0 ? cursor.next() : chunk.next();
+        lastId = doc.get(MongoCRUDController.ID_STR);
+        return doc;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    public void close() {
+        if (cursor != null) {
+            cursor.close();
+            cursor = null;
+        }
+    }
+
+    private void readChunk() {
+        DBObject q;
+        if (lastId == null) {
+            q = query;
+        } else {
+            BasicDBList and = new BasicDBList();
+            and.add(query);
+            and.add(new BasicDBObject(MongoCRUDController.ID_STR, new BasicDBObject("$gt", lastId)));
+            q = new BasicDBObject("$and", and);
+        }
+        LOGGER.debug("Reading chunk {}: {}", numChunks, q);
+        DBCursor c = new FindCommand(collection, q, projection).execute();
+        List<DBObject> docs;
+        try {
+            docs = c.sort(ID_SORT).limit(chunkSize).toArray();
+        } finally {
+            c.close();
+        }
+        numChunks++;
+        if (!idTypesChecked) {
+            Object id = lastId != null ? lastId : docs.isEmpty() ? null : docs.get(0).get(MongoCRUDController.ID_STR);
+            if (id != null) {
+                checkIdTypes(id);
+            }
+            idTypesChecked = true;
+        }
+        if (docs.size() < chunkSize) {
+            exhausted = true;
+        }
+        chunk = docs.iterator();
+    }
+
+    /**
+     * Fails if the query matches documents whose _id cannot be
+     * compared with the given _id
+     */
+    private void checkIdTypes(Object id) {
+        // An _id of another type is neither less than, nor greater than id
+        BasicDBList and = new BasicDBList();
+        and.add(query);
+        and.add(new BasicDBObject(MongoCRUDController.ID_STR, new BasicDBObject("$not", new BasicDBObject("$lte", id))));
+        and.add(new BasicDBObject(MongoCRUDController.ID_STR, new BasicDBObject("$not", new BasicDBObject("$gt", id))));
+        DBObject doc = new FindOneCommand(collection, new BasicDBObject("$and", and)).execute();
+        if (doc != null) {
+            LOGGER.error("Cannot read {} in chunks, _ids {} and {} have different types", query, id, doc.get(MongoCRUDController.ID_STR));
+            throw Error.get(MongoCrudConstants.ERR_MIXED_ID_TYPES, id + ", " + doc.get(MongoCRUDController.ID_STR));
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Computes the minimal $set/$unset update expression that turns one
+ * version of a document into another.
+ *
+ * Nested objects are compared field by field. Arrays and values are
+ * compared as a whole, and replaced as a whole if they are
+ * different. For every modified field, the original value is
+ * recorded, so the update can be conditioned on the document not
+ * being modified by someone else since it was read.
+ */
+public class DocumentDelta {
+
+    private final BasicDBObject set = new BasicDBObject();
+    private final BasicDBObject unset = new BasicDBObject();
+    private final BasicDBObject originalValues = new BasicDBObject();
+
+    /**
+     * Computes the delta between the two versions of a document
+     *
+     * @param oldDoc The document as it is in the db
+     * @param newDoc The modified document
+     */
+    public DocumentDelta(DBObject oldDoc, DBObject newDoc) {
+        diff(oldDoc, newDoc, "");
+    }
+
+    /**
+     * Returns true if the two documents are the same
+     */
+    public boolean isEmpty() {
+        return set.isEmpty() && unset.isEmpty();
+    }
+
+    /**
+     * Returns true if the delta modifies the _id field. Such a
+     * delta cannot be written using an update.
+     */
+    public boolean modifiesId() {
+        return set.containsField(MongoCRUDController.ID_STR) || unset.containsField(MongoCRUDController.ID_STR);
+    }
+
+    /**
+     * Returns the mongo update expression for the delta
+     */
+    public DBObject getUpdateExpression() {
+        BasicDBObject ret = new BasicDBObject();
+        if (!set.isEmpty()) {
+            ret.append("$set", set);
+        }
+        if (!unset.isEmpty()) {
+            ret.append("$unset", unset);
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a query that matches the document with the given id
+     * only if the modified fields still have their original values
+     */
+    public DBObject getQuery(Object id) {
+        BasicDBObject ret = new BasicDBObject(MongoCRUDController.ID_STR, id);
+        ret.putAll((DBObject) originalValues);
+        return ret;
+    }
+
+    private void diff(DBObject oldDoc, DBObject newDoc, String prefix) {
+        for (String key : newDoc.keySet()) {
+            String path = prefix + key;
+            Object newValue = newDoc.get(key);
+            if (oldDoc.containsField(key)) {
+                Object oldValue = oldDoc.get(key);
+                if (isObject(oldValue) && isObject(newValue)) {
+                    diff((DBObject) oldValue, (DBObject) newValue, path + ".");
+                } else if (!valueEquals(oldValue, newValue)) {
+                    set.put(path, newValue);
+                    originalValues.put(path, oldValue);
+                }
+            } else {
+                set.put(path, newValue);
+                originalValues.put(path, new BasicDBObject("$exists", false));
+            }
+        }
+        for (String key : oldDoc.keySet()) {
+            if (!newDoc.containsField(key)) {
+                String path = prefix + key;
+                unset.put(path, "");
+                originalValues.put(path, oldDoc.get(key));
+            }
+        }
+    }
+
+    private static boolean isObject(Object value) {
+        return value instanceof DBObject && !(value instanceof List);
+    }
+
+    private static boolean valueEquals(Object oldValue, Object newValue) {
+        if (oldValue == null) {
+            return newValue == null;
+        } else {
+            return oldValue.equals(newValue);
+        }
+    }
+}
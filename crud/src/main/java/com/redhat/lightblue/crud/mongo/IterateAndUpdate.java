@@ -18,16 +18,33 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.redhat.lightblue.crud.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
 import com.mongodb.DBCollection;
-import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.redhat.lightblue.interceptor.InterceptPoint;
 import com.redhat.lightblue.eval.FieldAccessRoleEvaluator;
@@ -35,26 +52,106 @@ import com.redhat.lightblue.eval.Projector;
 import com.redhat.lightblue.eval.Updater;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import com.redhat.lightblue.metadata.PredefinedFields;
-import com.redhat.lightblue.mongo.hystrix.FindCommand;
+import com.redhat.lightblue.mongo.hystrix.BulkUpdateCommand;
+import com.redhat.lightblue.mongo.hystrix.RemoveCommand;
 import com.redhat.lightblue.mongo.hystrix.SaveCommand;
+import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
 import com.redhat.lightblue.util.Error;
+import com.redhat.lightblue.util.JsonDoc;
 import com.redhat.lightblue.util.Path;
 
 /**
  * Non-atomic updater that evaluates the query, and updates the documents one by
  * one.
+ *
+ * Documents are read and written in batches. While a batch is being
+ * written, the documents of the next batch are updated, validated, and
+ * checked for access by the workers, in parallel if an executor is
+ * set. Each worker has its own updater, validator, translator, and
+ * role evaluator, and is used by one thread at a time. The batch is
+ * split into one task per worker, and the calling thread waits for a
+ * free worker before submitting a task, so the executor threads
+ * never block. Documents are added to the context, interceptors are
+ * called, and errors are reported in the order the documents are
+ * read, on the calling thread.
+ *
+ * By default, the modified documents of a batch are written one by
+ * one, so PRE_CRUD_UPDATE_DOC, the write, and POST_CRUD_UPDATE_DOC
+ * run in that order for each document. If batch writes are enabled,
+ * the modified documents of a batch are written with a single bulk
+ * update, so the PRE_CRUD_UPDATE_DOC interceptors of all the
+ * documents of the batch are called before the write, and the
+ * POST_CRUD_UPDATE_DOC interceptors after it.
  */
 public class IterateAndUpdate implements DocUpdater {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IterateAndUpdate.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
     private final JsonNodeFactory nodeFactory;
-    private final ConstraintValidator validator;
-    private final FieldAccessRoleEvaluator roleEval;
     private final Translator translator;
-    private final Updater updater;
     private final Projector projector;
     private final Projector errorProjector;
+    private final Worker localWorker;
+    private final BlockingQueue<Worker> workers = new LinkedBlockingQueue<>();
+    private int numWorkers;
+
+    private ExecutorService executor;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private boolean validateDocuments = true;
+    private int chunkSize;
+    private JobCheckpoint checkpoint;
+    private AdaptiveWriteThrottle throttle;
+    private boolean batchWrites = false;
+    private List<String> errorContext = Collections.emptyList();
+
+    /**
+     * Validators and updaters keep state, and translators and role
+     * evaluators are not known to be thread safe, so each thread
+     * processing documents needs its own set
+     */
+    private static final class Worker {
+        private final ConstraintValidator validator;
+        private final Updater updater;
+        private final Translator translator;
+        private final FieldAccessRoleEvaluator roleEval;
+
+        public Worker(ConstraintValidator validator,
+                      Updater updater,
+                      Translator translator,
+                      FieldAccessRoleEvaluator roleEval) {
+            this.validator = validator;
+            this.updater = updater;
+            this.translator = translator;
+            this.roleEval = roleEval;
+        }
+    }
+
+    /**
+     * A document read from the db, and its in-memory update
+     */
+    private static final class DocUpdate {
+        private final DBObject document;
+        private JsonDoc oldDoc;
+        private JsonDoc newDoc;
+        private boolean modified;
+        private final List<Error> errors = new ArrayList<>();
+        private final List<Error> docErrors = new ArrayList<>();
+
+        private DocCtx doc;
+        private DocumentDelta delta;
+        private boolean failed;
+        private boolean written;
+
+        public DocUpdate(DBObject document) {
+            this.document = document;
+        }
+
+        public Object getId() {
+            return document.get(MongoCRUDController.ID_STR);
+        }
+    }
 
     public IterateAndUpdate(JsonNodeFactory nodeFactory,
                             ConstraintValidator validator,
@@ -64,12 +161,119 @@ public class IterateAndUpdate implements DocUpdater {
                             Projector projector,
                             Projector errorProjector) {
         this.nodeFactory = nodeFactory;
-        this.validator = validator;
-        this.roleEval = roleEval;
         this.translator = translator;
-        this.updater = updater;
         this.projector = projector;
         this.errorProjector = errorProjector;
+        localWorker = new Worker(validator, updater, translator, roleEval);
+    }
+
+    /**
+     * Adds a worker used to process documents on the executor. The
+     * objects given here must not be used by any other worker, or by
+     * the caller while the update is running. The validator, updater,
+     * translator and role evaluator given to the constructor are only
+     * used on the calling thread.
+     */
+    public synchronized void addWorker(ConstraintValidator validator,
+                                       Updater updater,
+                                       Translator translator,
+                                       FieldAccessRoleEvaluator roleEval) {
+        workers.add(new Worker(validator, updater, translator, roleEval));
+        numWorkers++;
+    }
+
+    /**
+     * Sets the executor used to process documents. If null, or if no
+     * workers are added, documents are processed on the calling
+     * thread.
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sets the number of documents read and written at once
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * If false, updated documents are not validated. This can be
+     * used when the update does not modify any constrained fields.
+     */
+    public void setValidateDocuments(boolean b) {
+        validateDocuments = b;
+    }
+
+    public boolean isValidateDocuments() {
+        return validateDocuments;
+    }
+
+    /**
+     * If greater than 0, documents are read in chunks of this size in
+     * _id order, instead of using a single cursor
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the checkpoint used to record and resume the progress of
+     * the update. Only used if documents are read in chunks.
+     */
+    public void setCheckpoint(JobCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public JobCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the throttle limiting the write rate, can be null
+     */
+    public void setThrottle(AdaptiveWriteThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public AdaptiveWriteThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * If true, the modified documents of a batch are written with a
+     * single bulk update. Document interceptors are then called for
+     * the whole batch before and after the write, instead of around
+     * the write of each document.
+     */
+    public void setBatchWrites(boolean b) {
+        batchWrites = b;
+    }
+
+    public boolean isBatchWrites() {
+        return batchWrites;
+    }
+
+    /**
+     * Sets the error contexts pushed by the caller. Worker threads
+     * push the same contexts, so errors raised while processing
+     * documents on those threads have the caller's context.
+     */
+    public void setErrorContext(String... context) {
+        errorContext = Arrays.asList(context);
     }
 
     @Override
@@ -80,88 +284,415 @@ public class IterateAndUpdate implements DocUpdater {
                        DBObject query) {
         LOGGER.debug("iterateUpdate: start");
         LOGGER.debug("Computing the result set for {}", query);
-        DBCursor cursor = null;
+        ChunkedCursor cursor = null;
+        JobCheckpoint cp = chunkSize > 0 ? checkpoint : null;
+        List<Future<DocUpdate>> pending = null;
+        List<Future<DocUpdate>> next = null;
+        Object pendingLastId = null;
         int docIndex = 0;
         int numFailed = 0;
         int numUpdated = 0;
         try {
             ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_RESULTSET, ctx);
-            cursor = new FindCommand(collection, query, null).execute();
-            LOGGER.debug("Found {} documents", cursor.count());
+            cursor = new ChunkedCursor(collection, query, null, chunkSize, cp == null ? null : cp.getStartAfterId());
             ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_RESULTSET, ctx);
-            // read-update-write
-            while (cursor.hasNext()) {
-                DBObject document = cursor.next();
-                boolean hasErrors = false;
-                LOGGER.debug("Retrieved doc {}", docIndex);
-                DocCtx doc = ctx.addDocument(translator.toJson(document));
-                doc.setOutputDocument(doc.copy());
-                // From now on: doc contains the old copy, and doc.getOutputDocument contains the new copy
-                if (updater.update(doc.getOutputDocument(), md.getFieldTreeRoot(), Path.EMPTY)) {
-                    LOGGER.debug("Document {} modified, updating", docIndex);
-                    PredefinedFields.updateArraySizes(nodeFactory, doc.getOutputDocument());
-                    LOGGER.debug("Running constraint validations");
-                    validator.clearErrors();
-                    validator.validateDoc(doc.getOutputDocument());
-                    List<Error> errors = validator.getErrors();
-                    if (errors != null && !errors.isEmpty()) {
-                        ctx.addErrors(errors);
-                        hasErrors = true;
-                        LOGGER.debug("Doc has errors");
+            // read-update-write, the next batch is updated while the pending batch is written
+            while (cursor.hasNext() || pending != null) {
+                Object nextLastId = null;
+                if (cursor.hasNext()) {
+                    List<DBObject> documents = new ArrayList<>(batchSize);
+                    while (cursor.hasNext() && documents.size() < batchSize) {
+                        documents.add(cursor.next());
+                        LOGGER.debug("Retrieved doc {}", docIndex++);
                     }
-                    errors = validator.getDocErrors().get(doc.getOutputDocument());
-                    if (errors != null && !errors.isEmpty()) {
-                        doc.addErrors(errors);
-                        hasErrors = true;
-                        LOGGER.debug("Doc has data errors");
+                    nextLastId = cursor.getLastId();
+                    next = submit(documents, md);
+                }
+                if (pending != null) {
+                    int n = writeBatch(ctx, collection, md, pending);
+                    numFailed += n;
+                    numUpdated += pending.size() - n;
+                    if (cp != null) {
+                        cp.checkpoint(pendingLastId, pending.size(), n);
                     }
-                    if (!hasErrors) {
-                        List<Path> paths = roleEval.getInaccessibleFields_Update(doc.getOutputDocument(), doc);
-                        LOGGER.debug("Inaccesible fields during update={}" + paths);
-                        if (paths != null && !paths.isEmpty()) {
-                            doc.addError(Error.get("update", CrudConstants.ERR_NO_FIELD_UPDATE_ACCESS, paths.toString()));
-                            hasErrors = true;
-                        }
+                }
+                pending = next;
+                pendingLastId = nextLastId;
+                next = null;
+            }
+            if (cp != null) {
+                cp.completed();
+            }
+        } catch (RuntimeException e) {
+            if (cp != null) {
+                cp.failed();
+            }
+            throw e;
+        } finally {
+            cancel(pending);
+            cancel(next);
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        response.setNumUpdated(numUpdated);
+        response.setNumFailed(numFailed);
+    }
+
+    /**
+     * Starts processing the documents. Without an executor, the
+     * documents are processed before this returns. Otherwise the
+     * documents are split into one task per worker, and each task is
+     * submitted once a worker is free.
+     */
+    private List<Future<DocUpdate>> submit(List<DBObject> documents, EntityMetadata md) {
+        List<Future<DocUpdate>> futures = new ArrayList<>(documents.size());
+        int n;
+        synchronized (this) {
+            n = numWorkers;
+        }
+        if (executor == null || n == 0) {
+            for (DBObject document : documents) {
+                FutureTask<DocUpdate> f = newTask(localWorker, document, md);
+                f.run();
+                futures.add(f);
+            }
+        } else {
+            int taskSize = (documents.size() + n - 1) / n;
+            for (int from = 0; from < documents.size(); from += taskSize) {
+                Worker worker = takeWorker();
+                List<FutureTask<DocUpdate>> tasks = new ArrayList<>(taskSize);
+                for (DBObject document : documents.subList(from, Math.min(from + taskSize, documents.size()))) {
+                    tasks.add(newTask(worker, document, md));
+                }
+                futures.addAll(tasks);
+                submit(worker, tasks);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Runs the tasks on the executor with the given worker, and frees
+     * the worker when done
+     */
+    private void submit(final Worker worker, final List<FutureTask<DocUpdate>> tasks) {
+        final List<String> context = errorContext;
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    for (String c : context) {
+                        Error.push(c);
                     }
-                    if (!hasErrors) {
-                        try {
-                            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, doc);
-                            DBObject updatedObject = translator.toBson(doc.getOutputDocument());
-                            translator.addInvisibleFields(document, updatedObject, md);
-                            WriteResult result = new SaveCommand(collection, updatedObject).execute();
-                            doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
-                            LOGGER.debug("Number of rows affected : ", result.getN());
-                            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, doc);
-                            doc.startModifications();
-                        } catch (Exception e) {
-                            LOGGER.warn("Update exception for document {}: {}", docIndex, e);
-                            doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
-                            hasErrors = true;
+                    try {
+                        for (FutureTask<DocUpdate> f : tasks) {
+                            f.run();
+                        }
+                    } finally {
+                        for (int i = 0; i < context.size(); i++) {
+                            Error.pop();
                         }
+                        workers.add(worker);
                     }
-                } else {
-                    LOGGER.debug("Document {} was not modified", docIndex);
                 }
-                if (hasErrors) {
-                    LOGGER.debug("Document {} has errors", docIndex);
+            });
+        } catch (RuntimeException e) {
+            workers.add(worker);
+            throw e;
+        }
+    }
+
+    private FutureTask<DocUpdate> newTask(final Worker worker, final DBObject document, final EntityMetadata md) {
+        return new FutureTask<>(new Callable<DocUpdate>() {
+            @Override
+            public DocUpdate call() throws Exception {
+                return updateDoc(worker, document, md);
+            }
+        });
+    }
+
+    /**
+     * Waits until a worker is free. This runs on the calling thread,
+     * so only the caller waits while the workers are busy.
+     */
+    private Worker takeWorker() {
+        try {
+            return workers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString());
+        }
+    }
+
+    /**
+     * Updates, validates, and checks access for a document in memory
+     * using the given worker. Does not modify the operation context,
+     * so this can run on any thread.
+     */
+    private DocUpdate updateDoc(Worker worker, DBObject document, EntityMetadata md) {
+        DocUpdate u = new DocUpdate(document);
+        u.oldDoc = worker.translator.toJson(document);
+        u.newDoc = u.oldDoc.copy();
+        if (worker.updater.update(u.newDoc, md.getFieldTreeRoot(), Path.EMPTY)) {
+            u.modified = true;
+            PredefinedFields.updateArraySizes(nodeFactory, u.newDoc);
+            if (validateDocuments) {
+                LOGGER.debug("Running constraint validations");
+                worker.validator.clearErrors();
+                worker.validator.validateDoc(u.newDoc);
+                List<Error> errors = worker.validator.getErrors();
+                if (errors != null) {
+                    u.errors.addAll(errors);
+                }
+                errors = worker.validator.getDocErrors().get(u.newDoc);
+                if (errors != null) {
+                    u.docErrors.addAll(errors);
+                }
+            }
+            if (u.errors.isEmpty() && u.docErrors.isEmpty()) {
+                List<Path> paths = worker.roleEval.getInaccessibleFields_Update(u.newDoc, u.oldDoc);
+                LOGGER.debug("Inaccesible fields during update={}", paths);
+                if (paths != null && !paths.isEmpty()) {
+                    u.docErrors.add(Error.get("update", CrudConstants.ERR_NO_FIELD_UPDATE_ACCESS, paths.toString()));
+                }
+            }
+        }
+        return u;
+    }
+
+    /**
+     * Adds the documents of the batch to the context, and writes the
+     * modified ones.
+     *
+     * @return The number of failed documents
+     */
+    private int writeBatch(CRUDOperationContext ctx,
+                           DBCollection collection,
+                           EntityMetadata md,
+                           List<Future<DocUpdate>> batch) {
+        List<DocUpdate> updates = new ArrayList<>(batch.size());
+        List<DocUpdate> writes = new ArrayList<>(batch.size());
+        int numFailed = 0;
+        for (Future<DocUpdate> f : batch) {
+            DocUpdate u = get(f);
+            updates.add(u);
+            u.doc = ctx.addDocument(u.oldDoc);
+            // From now on: doc contains the old copy, and doc.getOutputDocument contains the new copy
+            u.doc.setOutputDocument(u.newDoc);
+            if (!u.errors.isEmpty()) {
+                ctx.addErrors(u.errors);
+                u.failed = true;
+                LOGGER.debug("Doc has errors");
+            }
+            if (!u.docErrors.isEmpty()) {
+                u.doc.addErrors(u.docErrors);
+                u.failed = true;
+                LOGGER.debug("Doc has data errors");
+            }
+            if (u.modified && !u.failed) {
+                prepareWrite(ctx, collection, md, u, writes);
+            }
+            if (!batchWrites) {
+                writeDeltas(collection, writes);
+                writes.clear();
+                if (completeWrite(ctx, u)) {
                     numFailed++;
-                    doc.setOutputDocument(errorProjector.project(doc.getOutputDocument(), nodeFactory));
-                } else {
-                    numUpdated++;
-                    if (projector != null) {
-                        LOGGER.debug("Projecting document {}", docIndex);
-                        doc.setOutputDocument(projector.project(doc.getOutputDocument(), nodeFactory));
+                }
+            }
+        }
+        if (batchWrites) {
+            writeDeltas(collection, writes);
+            for (DocUpdate u : updates) {
+                if (completeWrite(ctx, u)) {
+                    numFailed++;
+                }
+            }
+        }
+        return numFailed;
+    }
+
+    /**
+     * Calls the PRE_CRUD_UPDATE_DOC interceptors, and computes the
+     * delta to write. If the delta cannot be written as an update,
+     * the document is replaced. Otherwise it is added to writes.
+     */
+    private void prepareWrite(CRUDOperationContext ctx,
+                              DBCollection collection,
+                              EntityMetadata md,
+                              DocUpdate u,
+                              List<DocUpdate> writes) {
+        try {
+            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_UPDATE_DOC, ctx, u.doc);
+            DBObject updatedObject = translator.toBson(u.doc.getOutputDocument());
+            translator.addInvisibleFields(u.document, updatedObject, md);
+            u.delta = new DocumentDelta(u.document, updatedObject);
+            if (u.delta.modifiesId()) {
+                LOGGER.debug("_id is modified, replacing document");
+                WriteResult result = new SaveCommand(collection, updatedObject).execute();
+                LOGGER.debug("Number of rows affected : {}", result.getN());
+                u.written = true;
+            } else if (u.delta.isEmpty()) {
+                LOGGER.debug("No changes to write");
+                u.written = true;
+            } else {
+                writes.add(u);
+            }
+        } catch (Exception e) {
+            LOGGER.warn("Update exception for document {}: {}", u.getId(), e);
+            u.doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
+            u.failed = true;
+        }
+    }
+
+    /**
+     * Calls the POST_CRUD_UPDATE_DOC interceptors if the document is
+     * written, and projects the document.
+     *
+     * @return true if the document failed
+     */
+    private boolean completeWrite(CRUDOperationContext ctx, DocUpdate u) {
+        if (u.written) {
+            u.doc.setCRUDOperationPerformed(CRUDOperation.UPDATE);
+            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_UPDATE_DOC, ctx, u.doc);
+            u.doc.startModifications();
+        } else if (u.modified && !u.failed) {
+            LOGGER.debug("Document {} is modified by someone else", u.getId());
+            u.doc.addError(Error.get(MongoCrudConstants.ERR_CONCURRENT_UPDATE, String.valueOf(u.getId())));
+            u.failed = true;
+        }
+        if (u.failed) {
+            LOGGER.debug("Document {} has errors", u.getId());
+            u.doc.setOutputDocument(errorProjector.project(u.doc.getOutputDocument(), nodeFactory));
+        } else if (projector != null) {
+            LOGGER.debug("Projecting document {}", u.getId());
+            u.doc.setOutputDocument(projector.project(u.doc.getOutputDocument(), nodeFactory));
+        }
+        return u.failed;
+    }
+
+    /**
+     * Writes only the modified parts of the documents. Each update is
+     * conditioned on the modified fields still having their original
+     * values, so changes made by other writers after the document is
+     * read are not overwritten. Documents that are written are marked
+     * as such.
+     *
+     * A bulk update only reports how many documents matched, not which
+     * ones, so the updates of a bulk write are upserts. An update that
+     * does not match tries to insert a document with the same _id, and
+     * fails with a duplicate key error reported at the index of that
+     * update. If the document was deleted in the meantime, the
+     * document inserted by the upsert is removed.
+     */
+    private void writeDeltas(DBCollection collection, List<DocUpdate> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<DBObject> queries = new ArrayList<>(writes.size());
+        List<DBObject> updates = new ArrayList<>(writes.size());
+        for (DocUpdate u : writes) {
+            queries.add(u.delta.getQuery(u.getId()));
+            updates.add(u.delta.getUpdateExpression());
+        }
+        Set<Integer> notMatched = new HashSet<>();
+        if (throttle != null) {
+            throttle.acquire(writes.size());
+        }
+        long writeStart = System.currentTimeMillis();
+        try {
+            if (writes.size() == 1) {
+                LOGGER.debug("Writing delta: query={} update={}", queries.get(0), updates.get(0));
+                WriteResult result = new UpdateCommand(collection, queries.get(0), updates.get(0), false, false, WriteConcern.SAFE).execute();
+                if (result.getN() == 0) {
+                    notMatched.add(0);
+                }
+            } else {
+                LOGGER.debug("Writing {} deltas", writes.size());
+                BulkWriteResult result;
+                try {
+                    result = new BulkUpdateCommand(collection, queries, updates, true, WriteConcern.SAFE).executeAndUnwrap();
+                } catch (BulkWriteException e) {
+                    LOGGER.debug("Bulk update exception: {}", e);
+                    for (BulkWriteError error : e.getWriteErrors()) {
+                        if (isDuplicateKey(error.getCode())) {
+                            notMatched.add(error.getIndex());
+                        } else {
+                            DocUpdate u = writes.get(error.getIndex());
+                            LOGGER.warn("Update exception for document {}: {}", u.getId(), error.getMessage());
+                            u.doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, error.getMessage()));
+                            u.failed = true;
+                        }
                     }
+                    if (e.getWriteConcernError() != null) {
+                        LOGGER.warn("Write concern error: {}", e.getWriteConcernError().getMessage());
+                    }
+                    result = e.getWriteResult();
+                }
+                for (BulkWriteUpsert upsert : result.getUpserts()) {
+                    notMatched.add(upsert.getIndex());
+                    removeUpserted(collection, upsert.getId());
                 }
-                docIndex++;
             }
+        } catch (Exception e) {
+            LOGGER.warn("Update exception: {}", e);
+            for (DocUpdate u : writes) {
+                u.doc.addError(Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString()));
+                u.failed = true;
+            }
+            return;
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            if (throttle != null) {
+                throttle.writeCompleted(writes.size(), System.currentTimeMillis() - writeStart);
             }
         }
-        response.setNumUpdated(numUpdated);
-        response.setNumFailed(numFailed);
+        LOGGER.debug("Number of documents not matched : {}", notMatched.size());
+        for (int i = 0; i < writes.size(); i++) {
+            DocUpdate u = writes.get(i);
+            if (!u.failed && !notMatched.contains(i)) {
+                u.written = true;
+            }
+        }
+    }
+
+    private static boolean isDuplicateKey(int code) {
+        return code == 11000 || code == 11001;
+    }
+
+    /**
+     * Removes a document inserted by an upsert whose document was
+     * deleted after it was read
+     */
+    private static void removeUpserted(DBCollection collection, Object id) {
+        LOGGER.debug("Document {} is deleted, removing the upserted document", id);
+        try {
+            new RemoveCommand(collection, new BasicDBObject(MongoCRUDController.ID_STR, id), WriteConcern.SAFE).execute();
+        } catch (Exception e) {
+            LOGGER.error("Cannot remove upserted document {}: {}", id, e);
+        }
     }
 
+    private static DocUpdate get(Future<DocUpdate> f) {
+        try {
+            return f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, e.toString());
+        } catch (ExecutionException e) {
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) {
+                throw (RuntimeException) t;
+            } else {
+                throw Error.get(MongoCrudConstants.ERR_UPDATE_ERROR, t.toString());
+            }
+        }
+    }
+
+    private static void cancel(List<Future<DocUpdate>> batch) {
+        if (batch != null) {
+            for (Future<DocUpdate> f : batch) {
+                f.cancel(true);
+            }
+        }
+    }
 }
@@ -18,12 +18,17 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.mongodb.DBCollection;
-import com.mongodb.DBObject;
 import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
 import com.mongodb.BasicDBObject;
 import com.mongodb.WriteResult;
 import com.mongodb.WriteConcern;
@@ -37,47 +42,136 @@ import com.redhat.lightblue.mongo.hystrix.FindCommand;
 import com.redhat.lightblue.mongo.hystrix.RemoveCommand;
 
 /**
- * Iterates the result set and deleted documents one by one
+ * Iterates the result set and deletes documents in batches. The
+ * document-level interceptors are called for each document:
+ * PRE_CRUD_DELETE_DOC before its batch is removed, and
+ * POST_CRUD_DELETE_DOC after. As with one-by-one deletion, the post
+ * interceptors are also called for documents that were not removed,
+ * because someone else removed them first. Only the documents
+ * removed by this deleter are marked with CRUDOperation.DELETE. If
+ * some, but not all, of the documents of a batch are removed by
+ * someone else, they cannot be told apart from the ones removed by
+ * this deleter, and all of them are marked.
  */
 public class IterateDeleter implements DocDeleter {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(IterateDeleter.class);
 
+    public static final int DEFAULT_BATCH_SIZE = 64;
+
     private final Translator translator;
+    private int chunkSize;
+    private JobCheckpoint checkpoint;
+    private AdaptiveWriteThrottle throttle;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private DBObject projection;
 
     public IterateDeleter(Translator translator) {
         this.translator = translator;
     }
 
+    /**
+     * Sets the fields of the documents to retrieve. The projection
+     * should include _id and objectType. If null, all fields are
+     * retrieved.
+     */
+    public void setProjection(DBObject projection) {
+        this.projection = projection;
+    }
+
+    public DBObject getProjection() {
+        return projection;
+    }
+
+    /**
+     * Sets the number of documents deleted with a single remove
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * If greater than 0, documents are read in chunks of this size in
+     * _id order, instead of using a single cursor
+     */
+    public void setChunkSize(int chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Sets the checkpoint used to record the progress of the
+     * delete. Only used if documents are read in chunks.
+     */
+    public void setCheckpoint(JobCheckpoint checkpoint) {
+        this.checkpoint = checkpoint;
+    }
+
+    public JobCheckpoint getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Sets the throttle limiting the delete rate, can be null
+     */
+    public void setThrottle(AdaptiveWriteThrottle throttle) {
+        this.throttle = throttle;
+    }
+
+    public AdaptiveWriteThrottle getThrottle() {
+        return throttle;
+    }
+
     @Override
     public void delete(CRUDOperationContext ctx,
                        DBCollection collection,
                        DBObject mongoQuery,
                        CRUDDeleteResponse response) {
         LOGGER.debug("Computing the result set for {}", mongoQuery);
-        DBCursor cursor = null;
+        ChunkedCursor cursor = null;
+        JobCheckpoint cp = chunkSize > 0 ? checkpoint : null;
         int docIndex = 0;
         int numDeleted = 0;
+        List<DocCtx> batch = new ArrayList<>(batchSize);
+        List<Object> batchIds = new ArrayList<>(batchSize);
         try {
             // Find docs
-            cursor = new FindCommand(collection, mongoQuery, null).execute();
-            LOGGER.debug("Found {} documents", cursor.count());
-            // read-delet
+            cursor = new ChunkedCursor(collection, mongoQuery, projection, chunkSize, cp == null ? null : cp.getStartAfterId());
+            // read-delete
             while (cursor.hasNext()) {
                 DBObject document = cursor.next();
                 LOGGER.debug("Retrieved doc {}", docIndex);
-                Object id = document.get(MongoCRUDController.ID_STR);
                 DocCtx doc = ctx.addDocument(translator.toJson(document));
                 doc.setOriginalDocument(doc);
                 ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.PRE_CRUD_DELETE_DOC, ctx, doc);
-                WriteResult result = new RemoveCommand(collection, new BasicDBObject("_id", id), WriteConcern.SAFE).execute();
-                if (result.getN() == 1) {
-                    numDeleted++;
-                    doc.setCRUDOperationPerformed(CRUDOperation.DELETE);
-                }
-                ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_DELETE_DOC, ctx, doc);
+                batch.add(doc);
+                batchIds.add(document.get(MongoCRUDController.ID_STR));
                 docIndex++;
+                if (batch.size() >= batchSize || !cursor.hasNext()) {
+                    int n = deleteBatch(ctx, collection, batch, batchIds);
+                    numDeleted += n;
+                    if (cp != null) {
+                        cp.checkpoint(cursor.getLastId(), batch.size(), batch.size() - n);
+                    }
+                    batch.clear();
+                    batchIds.clear();
+                }
+            }
+            if (cp != null) {
+                cp.completed();
             }
+        } catch (RuntimeException e) {
+            if (cp != null) {
+                cp.failed();
+            }
+            throw e;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -85,4 +179,62 @@ public class IterateDeleter implements DocDeleter {
         }
         response.setNumDeleted(numDeleted);
     }
+
+    /**
+     * Deletes the documents of the batch with a single remove, marks
+     * the documents that are removed as deleted, and calls the
+     * post-delete interceptors for all documents of the batch
+     *
+     * @return Number of deleted documents
+     */
+    private int deleteBatch(CRUDOperationContext ctx,
+                            DBCollection collection,
+                            List<DocCtx> batch,
+                            List<Object> ids) {
+        LOGGER.debug("Deleting {} documents", ids.size());
+        if (throttle != null) {
+            throttle.acquire(ids.size());
+        }
+        long writeStart = System.currentTimeMillis();
+        DBObject q;
+        if (ids.size() == 1) {
+            q = new BasicDBObject(MongoCRUDController.ID_STR, ids.get(0));
+        } else {
+            q = new BasicDBObject(MongoCRUDController.ID_STR, new BasicDBObject("$in", ids));
+        }
+        WriteResult result;
+        try {
+            result = new RemoveCommand(collection, q, WriteConcern.SAFE).execute();
+        } finally {
+            if (throttle != null) {
+                throttle.writeCompleted(ids.size(), System.currentTimeMillis() - writeStart);
+            }
+        }
+        int n = result.getN();
+        Set<Object> notRemovedIds = new HashSet<>();
+        if (n == 0) {
+            notRemovedIds.addAll(ids);
+        } else if (n < ids.size()) {
+            // Some of the documents were not removed by this remove. Find
+            // out which ones are still there. Documents removed by someone
+            // else in the meantime are gone as well, and cannot be told apart
+            LOGGER.debug("Deleted {} out of {} documents", n, ids.size());
+            DBCursor cursor = new FindCommand(collection, q, new BasicDBObject(MongoCRUDController.ID_STR, 1)).execute();
+            try {
+                while (cursor.hasNext()) {
+                    notRemovedIds.add(cursor.next().get(MongoCRUDController.ID_STR));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            DocCtx doc = batch.get(i);
+            if (!notRemovedIds.contains(ids.get(i))) {
+                doc.setCRUDOperationPerformed(CRUDOperation.DELETE);
+            }
+            ctx.getFactory().getInterceptors().callInterceptors(InterceptPoint.POST_CRUD_DELETE_DOC, ctx, doc);
+        }
+        return n;
+    }
 }
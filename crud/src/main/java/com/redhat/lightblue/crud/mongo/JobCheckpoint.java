@@ -0,0 +1,252 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import com.redhat.lightblue.mongo.hystrix.FindAndModifyCommand;
+import com.redhat.lightblue.mongo.hystrix.InsertCommand;
+import com.redhat.lightblue.mongo.hystrix.UpdateCommand;
+import com.redhat.lightblue.util.Error;
+
+/**
+ * Persists the progress of a long-running update or delete in a job
+ * collection. The job document keeps the _id of the last processed
+ * document, and the number of processed and failed documents.
+ *
+ * Every run of an operation starts a new job with a unique id. A job
+ * is resumed only if its id is given explicitly, and only if it is
+ * still incomplete and its lease expired. A running job is owned by
+ * the run that started or resumed it, and its lease is renewed at
+ * every checkpoint. A checkpoint of a run that lost the ownership of
+ * the job fails, so that run stops. A run that fails releases its
+ * lease, so the job can be resumed right away.
+ *
+ * <pre>
+ *  { _id: jobId,
+ *    op: operation,
+ *    entity: entityName,
+ *    query: query,
+ *    update: update,
+ *    status: running | failed | completed,
+ *    owner: id of the run owning the job,
+ *    leaseExpires: date the ownership expires,
+ *    lastId: _id of the last processed document,
+ *    processed: number of processed documents,
+ *    failed: number of failed documents,
+ *    started: start date,
+ *    lastUpdate: date of last checkpoint }
+ * </pre>
+ */
+public class JobCheckpoint {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(JobCheckpoint.class);
+
+    public static final String OP = "op";
+    public static final String ENTITY = "entity";
+    public static final String QUERY = "query";
+    public static final String UPDATE = "update";
+    public static final String STATUS = "status";
+    public static final String OWNER = "owner";
+    public static final String LEASE_EXPIRES = "leaseExpires";
+    public static final String LASTID = "lastId";
+    public static final String PROCESSED = "processed";
+    public static final String FAILED = "failed";
+    public static final String STARTED = "started";
+    public static final String LASTUPDATE = "lastUpdate";
+
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_COMPLETED = "completed";
+
+    /**
+     * How long a running job is owned by its run after the last checkpoint
+     */
+    public static final long LEASE_MSEC = 5l * 60l * 1000l;
+
+    private final DBCollection jobs;
+    private final String jobId;
+    private final String owner;
+    private final Object startAfterId;
+    private final long numProcessedBefore;
+
+    private JobCheckpoint(DBCollection jobs, String jobId, String owner, Object startAfterId, long numProcessedBefore) {
+        this.jobs = jobs;
+        this.jobId = jobId;
+        this.owner = owner;
+        this.startAfterId = startAfterId;
+        this.numProcessedBefore = numProcessedBefore;
+    }
+
+    /**
+     * Starts a new job, or resumes the job with the given id. A job
+     * can only be resumed if it is for the same operation, it is not
+     * completed, and its lease expired or was released, that is, the
+     * run that owned it is no longer making progress.
+     *
+     * @param jobs The job collection
+     * @param op Operation, update or delete
+     * @param entity Entity name
+     * @param query The mongo query
+     * @param update The update expression, null for deletes
+     * @param resumeJobId The id of the job to resume, or null to start a new job
+     */
+    public static JobCheckpoint open(DBCollection jobs,
+                                     String op,
+                                     String entity,
+                                     String query,
+                                     String update,
+                                     String resumeJobId) {
+        Date now = new Date();
+        Date leaseExpires = new Date(now.getTime() + LEASE_MSEC);
+        String owner = UUID.randomUUID().toString();
+        if (resumeJobId != null) {
+            DBObject q = new BasicDBObject(MongoCRUDController.ID_STR, resumeJobId).
+                    append(OP, op).
+                    append(ENTITY, entity).
+                    append(QUERY, query).
+                    append(UPDATE, update).
+                    append(STATUS, new BasicDBObject("$in", Arrays.asList(STATUS_RUNNING, STATUS_FAILED))).
+                    append(LEASE_EXPIRES, new BasicDBObject("$lte", now));
+            DBObject u = new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_RUNNING).
+                    append(OWNER, owner).
+                    append(LEASE_EXPIRES, leaseExpires).
+                    append(LASTUPDATE, now));
+            DBObject job = new FindAndModifyCommand(jobs, q, null, null, false, u, true, false).execute();
+            if (job == null) {
+                throw Error.get(MongoCrudConstants.ERR_CANNOT_RESUME_JOB, resumeJobId);
+            }
+            Object lastId = job.get(LASTID);
+            Number processed = (Number) job.get(PROCESSED);
+            LOGGER.info("Resuming job {} after {}, {} documents processed before", resumeJobId, lastId, processed);
+            return new JobCheckpoint(jobs, resumeJobId, owner, lastId, processed == null ? 0 : processed.longValue());
+        } else {
+            String jobId = new ObjectId().toString();
+            DBObject job = new BasicDBObject(MongoCRUDController.ID_STR, jobId).
+                    append(OP, op).
+                    append(ENTITY, entity).
+                    append(QUERY, query).
+                    append(UPDATE, update).
+                    append(STATUS, STATUS_RUNNING).
+                    append(OWNER, owner).
+                    append(LEASE_EXPIRES, leaseExpires).
+                    append(LASTID, null).
+                    append(PROCESSED, 0L).
+                    append(FAILED, 0L).
+                    append(STARTED, now).
+                    append(LASTUPDATE, now);
+            new InsertCommand(jobs, job, WriteConcern.SAFE).execute();
+            LOGGER.info("Starting job {}", jobId);
+            return new JobCheckpoint(jobs, jobId, owner, null, 0);
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    /**
+     * Returns the _id of the last document processed by the previous
+     * run of the job, or null if the job is started from the beginning
+     */
+    public Object getStartAfterId() {
+        return startAfterId;
+    }
+
+    /**
+     * Returns the number of documents processed by the previous runs
+     * of the job
+     */
+    public long getNumProcessedBefore() {
+        return numProcessedBefore;
+    }
+
+    /**
+     * Records that all documents up to and including lastId are
+     * processed, and renews the lease of the job. Fails if this run
+     * no longer owns the job, that is, the job was resumed by another
+     * run after the lease expired.
+     *
+     * @param lastId _id of the last processed document
+     * @param numProcessed Number of documents processed since the last checkpoint
+     * @param numFailed Number of documents failed since the last checkpoint
+     */
+    public void checkpoint(Object lastId, int numProcessed, int numFailed) {
+        LOGGER.debug("Job {} checkpoint: lastId={} processed={}", jobId, lastId, numProcessed);
+        Date now = new Date();
+        WriteResult result = new UpdateCommand(jobs,
+                getOwnedJobQuery(),
+                new BasicDBObject("$set", new BasicDBObject(LASTID, lastId).
+                        append(LASTUPDATE, now).
+                        append(LEASE_EXPIRES, new Date(now.getTime() + LEASE_MSEC))).
+                append("$inc", new BasicDBObject(PROCESSED, (long) numProcessed).append(FAILED, (long) numFailed)),
+                false, false, WriteConcern.SAFE).execute();
+        if (result.getN() == 0) {
+            LOGGER.warn("Job {} is no longer owned by this run, stopping at {}", jobId, lastId);
+            throw Error.get(MongoCrudConstants.ERR_JOB_NOT_OWNED, jobId);
+        }
+    }
+
+    /**
+     * Marks the job as failed, and releases its lease so it can be
+     * resumed right away. The progress recorded at the last
+     * checkpoint is kept. Errors are logged, not thrown, so the
+     * failure of the run is not hidden.
+     */
+    public void failed() {
+        LOGGER.info("Job {} failed", jobId);
+        try {
+            Date now = new Date();
+            new UpdateCommand(jobs,
+                    getOwnedJobQuery(),
+                    new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_FAILED).
+                            append(LEASE_EXPIRES, now).
+                            append(LASTUPDATE, now)),
+                    false, false, WriteConcern.SAFE).execute();
+        } catch (Exception e) {
+            LOGGER.warn("Cannot release job {}: {}", jobId, e);
+        }
+    }
+
+    /**
+     * Marks the job as completed
+     */
+    public void completed() {
+        LOGGER.info("Job {} completed", jobId);
+        new UpdateCommand(jobs,
+                getOwnedJobQuery(),
+                new BasicDBObject("$set", new BasicDBObject(STATUS, STATUS_COMPLETED).append(LASTUPDATE, new Date())),
+                false, false, WriteConcern.SAFE).execute();
+    }
+
+    private DBObject getOwnedJobQuery() {
+        return new BasicDBObject(MongoCRUDController.ID_STR, jobId).append(OWNER, owner);
+    }
+}
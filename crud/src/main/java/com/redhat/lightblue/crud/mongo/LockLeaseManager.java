@@ -0,0 +1,228 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the locks acquired through it alive until they are released.
+ *
+ * A scheduled task periodically renews the locks that passed half of
+ * their TTL. Locks of the same caller with the same TTL are renewed
+ * with a single update. If a lock cannot be renewed, it is dropped,
+ * and the listeners are notified.
+ */
+public class LockLeaseManager {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LockLeaseManager.class);
+
+    public static final long DEFAULT_RENEW_INTERVAL_MSEC = 1000l;
+
+    private static final class Lease {
+        private final String callerId;
+        private final String resourceId;
+        private final long ttl;
+        private volatile long renewAt;
+
+        public Lease(String callerId, String resourceId, long ttl) {
+            this.callerId = callerId;
+            this.resourceId = resourceId;
+            this.ttl = ttl;
+            scheduleRenewal();
+        }
+
+        public void scheduleRenewal() {
+            renewAt = System.currentTimeMillis() + ttl / 2;
+        }
+    }
+
+    private final MongoLocking locking;
+    private final ScheduledExecutorService scheduler;
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+    private final List<LockLeaseListener> listeners = new CopyOnWriteArrayList<>();
+    private long defaultTTL = 60l * 1000l;
+
+    /**
+     * Creates a lease manager that checks the leases every
+     * DEFAULT_RENEW_INTERVAL_MSEC
+     */
+    public LockLeaseManager(MongoLocking locking) {
+        this(locking, DEFAULT_RENEW_INTERVAL_MSEC);
+    }
+
+    /**
+     * Creates a lease manager that checks the leases at the given
+     * interval. The interval should be well below the shortest TTL.
+     */
+    public LockLeaseManager(MongoLocking locking, long renewIntervalMsec) {
+        this.locking = locking;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = defaultFactory.newThread(r);
+                t.setName("mongo-lock-lease-" + t.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    renewLeases();
+                } catch (RuntimeException e) {
+                    LOGGER.error("Cannot renew leases: {}", e);
+                }
+            }
+        }, renewIntervalMsec, renewIntervalMsec, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sets the TTL used for the locks acquired without an explicit
+     * TTL. The default is one minute.
+     */
+    public void setDefaultTTL(long l) {
+        defaultTTL = l;
+    }
+
+    public void addListener(LockLeaseListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(LockLeaseListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Acquires the lock, and keeps renewing it until it is released
+     *
+     * @return true if the lock is acquired
+     */
+    public boolean acquire(String callerId, String resourceId, Long ttl) {
+        if (ttl == null) {
+            ttl = defaultTTL;
+        }
+        if (locking.acquire(callerId, resourceId, ttl)) {
+            leases.put(key(callerId, resourceId), new Lease(callerId, resourceId, ttl));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases the lock. The lease is dropped when the lock is
+     * completely released.
+     *
+     * @return true if the lock is released by this call
+     */
+    public boolean release(String callerId, String resourceId) {
+        boolean released;
+        try {
+            released = locking.release(callerId, resourceId);
+        } catch (RuntimeException e) {
+            leases.remove(key(callerId, resourceId));
+            throw e;
+        }
+        if (released) {
+            leases.remove(key(callerId, resourceId));
+        }
+        return released;
+    }
+
+    /**
+     * Returns true if the lock is managed by this lease manager
+     */
+    public boolean isManaged(String callerId, String resourceId) {
+        return leases.containsKey(key(callerId, resourceId));
+    }
+
+    /**
+     * Stops renewing the leases. The locks are not released, they
+     * expire after their TTL.
+     */
+    public void close() {
+        scheduler.shutdownNow();
+        leases.clear();
+    }
+
+    /**
+     * Renews the leases that passed half of their TTL
+     */
+    void renewLeases() {
+        long now = System.currentTimeMillis();
+        // Group the leases to be renewed by caller and ttl
+        Map<String, List<Lease>> groups = new HashMap<>();
+        for (Lease lease : leases.values()) {
+            if (lease.renewAt <= now) {
+                String group = lease.callerId + "\u0000" + lease.ttl;
+                List<Lease> list = groups.get(group);
+                if (list == null) {
+                    list = new ArrayList<>();
+                    groups.put(group, list);
+                }
+                list.add(lease);
+            }
+        }
+        for (List<Lease> group : groups.values()) {
+            Lease first = group.get(0);
+            List<String> resources = new ArrayList<>(group.size());
+            for (Lease lease : group) {
+                resources.add(lease.resourceId);
+            }
+            LOGGER.debug("Renewing {}/{}", first.callerId, resources);
+            Set<String> lost = locking.pingAll(first.callerId, resources, first.ttl);
+            for (Lease lease : group) {
+                if (lost.contains(lease.resourceId)) {
+                    // The lease may be released while we were renewing it
+                    if (leases.remove(key(lease.callerId, lease.resourceId), lease)) {
+                        LOGGER.warn("Lock {}/{} cannot be renewed", lease.callerId, lease.resourceId);
+                        for (LockLeaseListener listener : listeners) {
+                            try {
+                                listener.renewalFailed(lease.callerId, lease.resourceId);
+                            } catch (RuntimeException e) {
+                                LOGGER.error("Lease listener failed: {}", e);
+                            }
+                        }
+                    }
+                } else {
+                    lease.scheduleRenewal();
+                }
+            }
+        }
+    }
+
+    private static String key(String callerId, String resourceId) {
+        return callerId + "\u0000" + resourceId;
+    }
+}
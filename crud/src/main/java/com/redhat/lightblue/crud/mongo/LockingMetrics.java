@@ -0,0 +1,314 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms of a lock collection. The failed
+ * acquisition attempts are counted per resource for a bounded number
+ * of resources: when the limit is reached, all counts are halved and
+ * the resources that drop to zero are forgotten, so the resources
+ * that are contended recently stay on top.
+ */
+public class LockingMetrics implements LockingMetricsMBean {
+
+    public static final int DEFAULT_MAX_TRACKED_RESOURCES = 1000;
+    public static final int DEFAULT_TOP_N = 10;
+
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong reentrant = new AtomicLong();
+    private final AtomicLong takeover = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong released = new AtomicLong();
+    private final AtomicLong releaseFailed = new AtomicLong();
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong pingFailed = new AtomicLong();
+
+    private volatile LatencyHistogram acquireLatency = new LatencyHistogram();
+    private volatile LatencyHistogram releaseLatency = new LatencyHistogram();
+    private volatile LatencyHistogram pingLatency = new LatencyHistogram();
+    private volatile LatencyHistogram holdTime = new LatencyHistogram();
+
+    private final ConcurrentHashMap<String, AtomicLong> contention = new ConcurrentHashMap<>();
+    private int maxTrackedResources = DEFAULT_MAX_TRACKED_RESOURCES;
+    private int topN = DEFAULT_TOP_N;
+
+    public void setMaxTrackedResources(int n) {
+        maxTrackedResources = n;
+    }
+
+    public void setTopN(int n) {
+        topN = n;
+    }
+
+    /**
+     * A new lock is created
+     */
+    public void acquired(long latency) {
+        acquired.incrementAndGet();
+        acquireLatency.record(latency);
+    }
+
+    /**
+     * A lock already held by the caller is acquired again
+     */
+    public void reentrant(long latency) {
+        reentrant.incrementAndGet();
+        acquireLatency.record(latency);
+    }
+
+    /**
+     * An expired lock is taken over
+     */
+    public void takeover(long latency) {
+        takeover.incrementAndGet();
+        acquireLatency.record(latency);
+    }
+
+    /**
+     * The lock is held by someone else
+     */
+    public void failed(String resourceId, long latency) {
+        failed.incrementAndGet();
+        acquireLatency.record(latency);
+        AtomicLong cnt = contention.get(resourceId);
+        if (cnt == null) {
+            if (contention.size() >= maxTrackedResources) {
+                decay();
+            }
+            cnt = new AtomicLong();
+            AtomicLong x = contention.putIfAbsent(resourceId, cnt);
+            if (x != null) {
+                cnt = x;
+            }
+        }
+        cnt.incrementAndGet();
+    }
+
+    /**
+     * The lock is released
+     *
+     * @param latency Duration of the release call
+     * @param holdTime How long the lock was held, or -1 if not known
+     */
+    public void released(long latency, long holdTime) {
+        released.incrementAndGet();
+        releaseLatency.record(latency);
+        if (holdTime >= 0) {
+            this.holdTime.record(holdTime);
+        }
+    }
+
+    /**
+     * Release failed, because the lock is not held by the caller
+     */
+    public void releaseFailed(long latency) {
+        releaseFailed.incrementAndGet();
+        releaseLatency.record(latency);
+    }
+
+    public void pinged(int numLocks, int numFailed, long latency) {
+        pings.addAndGet(numLocks);
+        pingFailed.addAndGet(numFailed);
+        pingLatency.record(latency);
+    }
+
+    private synchronized void decay() {
+        if (contention.size() < maxTrackedResources) {
+            return;
+        }
+        for (Iterator<AtomicLong> itr = contention.values().iterator(); itr.hasNext();) {
+            AtomicLong cnt = itr.next();
+            long v;
+            do {
+                v = cnt.get();
+            } while (!cnt.compareAndSet(v, v / 2));
+            if (v / 2 == 0) {
+                itr.remove();
+            }
+        }
+    }
+
+    public LatencyHistogram getAcquireLatency() {
+        return acquireLatency;
+    }
+
+    public LatencyHistogram getReleaseLatency() {
+        return releaseLatency;
+    }
+
+    public LatencyHistogram getPingLatency() {
+        return pingLatency;
+    }
+
+    public LatencyHistogram getHoldTime() {
+        return holdTime;
+    }
+
+    @Override
+    public long getAcquiredCount() {
+        return acquired.get();
+    }
+
+    @Override
+    public long getReentrantCount() {
+        return reentrant.get();
+    }
+
+    @Override
+    public long getTakeoverCount() {
+        return takeover.get();
+    }
+
+    @Override
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    @Override
+    public long getReleasedCount() {
+        return released.get();
+    }
+
+    @Override
+    public long getReleaseFailedCount() {
+        return releaseFailed.get();
+    }
+
+    @Override
+    public long getPingCount() {
+        return pings.get();
+    }
+
+    @Override
+    public long getPingFailedCount() {
+        return pingFailed.get();
+    }
+
+    @Override
+    public double getAcquireLatencyMean() {
+        return acquireLatency.getMean();
+    }
+
+    @Override
+    public long getAcquireLatencyP99() {
+        return acquireLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getAcquireLatencyMax() {
+        return acquireLatency.getMax();
+    }
+
+    @Override
+    public double getReleaseLatencyMean() {
+        return releaseLatency.getMean();
+    }
+
+    @Override
+    public long getReleaseLatencyP99() {
+        return releaseLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getReleaseLatencyMax() {
+        return releaseLatency.getMax();
+    }
+
+    @Override
+    public double getPingLatencyMean() {
+        return pingLatency.getMean();
+    }
+
+    @Override
+    public long getPingLatencyP99() {
+        return pingLatency.getPercentile(0.99);
+    }
+
+    @Override
+    public long getPingLatencyMax() {
+        return pingLatency.getMax();
+    }
+
+    @Override
+    public double getHoldTimeMean() {
+        return holdTime.getMean();
+    }
+
+    @Override
+    public long getHoldTimeP50() {
+        return holdTime.getPercentile(0.5);
+    }
+
+    @Override
+    public long getHoldTimeP99() {
+        return holdTime.getPercentile(0.99);
+    }
+
+    @Override
+    public long getHoldTimeMax() {
+        return holdTime.getMax();
+    }
+
+    @Override
+    public String[] getTopContendedResources() {
+        List<Map.Entry<String, Long>> list = new ArrayList<>();
+        for (Map.Entry<String, AtomicLong> entry : contention.entrySet()) {
+            list.add(new AbstractMap.SimpleEntry<String, Long>(entry.getKey(), entry.getValue().get()));
+        }
+        Collections.sort(list, new Comparator<Map.Entry<String, Long>>() {
+            @Override
+            public int compare(Map.Entry<String, Long> e1, Map.Entry<String, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        int n = Math.min(topN, list.size());
+        String[] ret = new String[n];
+        for (int i = 0; i < n; i++) {
+            ret[i] = list.get(i).getKey() + "=" + list.get(i).getValue();
+        }
+        return ret;
+    }
+
+    @Override
+    public void reset() {
+        acquired.set(0);
+        reentrant.set(0);
+        takeover.set(0);
+        failed.set(0);
+        released.set(0);
+        releaseFailed.set(0);
+        pings.set(0);
+        pingFailed.set(0);
+        acquireLatency = new LatencyHistogram();
+        releaseLatency = new LatencyHistogram();
+        pingLatency = new LatencyHistogram();
+        holdTime = new LatencyHistogram();
+        contention.clear();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+/**
+ * Lock metrics exposed over JMX. Latencies and hold times are in
+ * milliseconds.
+ */
+public interface LockingMetricsMBean {
+
+    long getAcquiredCount();
+
+    long getReentrantCount();
+
+    long getTakeoverCount();
+
+    long getFailedCount();
+
+    long getReleasedCount();
+
+    long getReleaseFailedCount();
+
+    long getPingCount();
+
+    long getPingFailedCount();
+
+    double getAcquireLatencyMean();
+
+    long getAcquireLatencyP99();
+
+    long getAcquireLatencyMax();
+
+    double getReleaseLatencyMean();
+
+    long getReleaseLatencyP99();
+
+    long getReleaseLatencyMax();
+
+    double getPingLatencyMean();
+
+    long getPingLatencyP99();
+
+    long getPingLatencyMax();
+
+    double getHoldTimeMean();
+
+    long getHoldTimeP50();
+
+    long getHoldTimeP99();
+
+    long getHoldTimeMax();
+
+    /**
+     * Returns the resources with the most failed acquisition
+     * attempts, as "resourceId=count", most contended first
+     */
+    String[] getTopContendedResources();
+
+    void reset();
+}
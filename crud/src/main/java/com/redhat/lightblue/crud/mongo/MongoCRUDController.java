@@ -48,6 +48,9 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 public class MongoCRUDController implements CRUDController, MetadataListener, ExtensionSupport {
 
@@ -77,6 +80,19 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
      */
     public static final String PROP_FINDER = "MongoCRUDController:finder";
 
+    /**
+     * Name of the property for the operation context that keeps the id
+     * of the job recording the progress of a chunked update or delete
+     */
+    public static final String PROP_JOB = "MongoCRUDController:job";
+
+    /**
+     * Name of the property for the operation context that, if set,
+     * contains the id of an incomplete job to resume instead of
+     * starting a new one
+     */
+    public static final String PROP_RESUME_JOB = "MongoCRUDController:resumeJob";
+
     public static final String OP_INSERT = "insert";
     public static final String OP_SAVE = "save";
     public static final String OP_FIND = "find";
@@ -90,9 +106,49 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     private final DBResolver dbResolver;
     private final ControllerConfiguration controllerCfg;
 
+    /**
+     * If true, updates and deletes that don't need the documents in
+     * the JVM are executed entirely in the database. Off by default.
+     */
+    private boolean serverSideBulkWrites = false;
+
+    /**
+     * Number of threads used to process the documents of an iterative
+     * update. If 1, documents are processed on the calling thread.
+     */
+    private int updateThreads = 1;
+    private int updateBatchSize = IterateAndUpdate.DEFAULT_BATCH_SIZE;
+    private int deleteBatchSize = IterateDeleter.DEFAULT_BATCH_SIZE;
+    private ExecutorService updateExecutor;
+
+    /**
+     * If greater than 0, iterative updates and deletes read documents
+     * in _id ranges of this size. If a job collection is also set, the
+     * progress is recorded there, and a failed operation resumes from
+     * the last checkpoint when it is issued again with its job id in
+     * the PROP_RESUME_JOB property.
+     */
+    private int iterateChunkSize = 0;
+    private String jobCollection = null;
+
+    /**
+     * Write throttle settings for iterative updates and deletes. If
+     * throttleMaxDocsPerSec is 0, writes are not throttled.
+     */
+    private int throttleMinDocsPerSec;
+    private int throttleMaxDocsPerSec;
+    private long throttleTargetLatencyMsec;
+    private long throttleMaxLagMsec;
+    private ReplicationStatusProvider replicationStatusProvider;
+
+    private final MongoLockingSupport lockingSupport;
+    private final MongoSequenceSupport sequenceSupport;
+
     public MongoCRUDController(ControllerConfiguration controllerCfg,DBResolver dbResolver) {
         this.dbResolver = dbResolver;
         this.controllerCfg=controllerCfg;
+        this.lockingSupport=new MongoLockingSupport(this);
+        this.sequenceSupport=new MongoSequenceSupport(this);
     }
 
     public DBResolver getDbResolver() {
@@ -102,6 +158,175 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     public ControllerConfiguration getControllerConfiguration() {
         return controllerCfg;
     }
+
+    public boolean isServerSideBulkWrites() {
+        return serverSideBulkWrites;
+    }
+
+    /**
+     * If true, translatable updates with no projection and deletes of
+     * entities with no hooks run as a single multi-document update or
+     * remove in the database. This avoids reading the documents, but
+     * the document level interceptors (PRE/POST_CRUD_UPDATE_DOC,
+     * PRE/POST_CRUD_DELETE_DOC) are not called for such operations,
+     * and the documents are not returned in the operation
+     * context. Iterative updates also write the documents of a batch
+     * with a single bulk update, calling the document interceptors
+     * for the whole batch before and after the write. Enable only if
+     * no document level interceptors are registered.
+     */
+    public void setServerSideBulkWrites(boolean b) {
+        serverSideBulkWrites = b;
+    }
+
+    public int getUpdateThreads() {
+        return updateThreads;
+    }
+
+    /**
+     * Sets the number of threads used to process the documents of
+     * iterative updates. The threads are shared by all update
+     * requests. An update has at most one task per thread queued at
+     * a time, and the tasks do not wait for each other, so a large
+     * update does not hold the threads other updates need.
+     */
+    public synchronized void setUpdateThreads(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("updateThreads=" + n);
+        }
+        if (updateExecutor != null) {
+            updateExecutor.shutdown();
+            updateExecutor = null;
+        }
+        updateThreads = n;
+        if (n > 1) {
+            updateExecutor = Executors.newFixedThreadPool(n, new ThreadFactory() {
+                private final ThreadFactory defaultFactory = Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = defaultFactory.newThread(r);
+                    t.setName("mongo-update-" + t.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    public int getIterateChunkSize() {
+        return iterateChunkSize;
+    }
+
+    /**
+     * If greater than 0, iterative updates and deletes read the
+     * documents in chunks of this size in _id order, so they can be
+     * resumed. The documents they touch must all have the same _id
+     * type, otherwise the operation fails with
+     * MongoCrudConstants.ERR_MIXED_ID_TYPES.
+     */
+    public void setIterateChunkSize(int n) {
+        if (n < 0) {
+            throw new IllegalArgumentException("iterateChunkSize=" + n);
+        }
+        iterateChunkSize = n;
+    }
+
+    public String getJobCollection() {
+        return jobCollection;
+    }
+
+    /**
+     * Sets the name of the collection keeping the progress of chunked
+     * updates and deletes. The collection is in the same database as
+     * the entity.
+     */
+    public void setJobCollection(String collectionName) {
+        jobCollection = collectionName;
+    }
+
+    /**
+     * Enables write throttling for iterative updates and deletes
+     *
+     * @param minDocsPerSec Minimum number of documents written per second
+     * @param maxDocsPerSec Maximum number of documents written per second. If 0, throttling is disabled
+     * @param targetLatencyMsec The rate is reduced if writes take longer than this
+     * @param maxLagMsec The rate is reduced if replication lag is more than this
+     * @throws IllegalArgumentException if throttling is enabled and
+     * minDocsPerSec is not positive, maxDocsPerSec is less than
+     * minDocsPerSec, or a limit is negative
+     */
+    public void setWriteThrottle(int minDocsPerSec, int maxDocsPerSec, long targetLatencyMsec, long maxLagMsec) {
+        if (maxDocsPerSec < 0 || (maxDocsPerSec > 0 && (minDocsPerSec <= 0 || maxDocsPerSec < minDocsPerSec))
+                || targetLatencyMsec < 0 || maxLagMsec < 0) {
+            throw new IllegalArgumentException("minDocsPerSec=" + minDocsPerSec + " maxDocsPerSec=" + maxDocsPerSec
+                    + " targetLatencyMsec=" + targetLatencyMsec + " maxLagMsec=" + maxLagMsec);
+        }
+        throttleMinDocsPerSec = minDocsPerSec;
+        throttleMaxDocsPerSec = maxDocsPerSec;
+        throttleTargetLatencyMsec = targetLatencyMsec;
+        throttleMaxLagMsec = maxLagMsec;
+    }
+
+    /**
+     * Sets the replication status provider used by write
+     * throttling. If not set, replication status is read from the
+     * database of the entity.
+     */
+    public void setReplicationStatusProvider(ReplicationStatusProvider p) {
+        replicationStatusProvider = p;
+    }
+
+    public ReplicationStatusProvider getReplicationStatusProvider() {
+        return replicationStatusProvider;
+    }
+
+    /**
+     * Returns a new write throttle for an operation on the given db,
+     * or null if throttling is disabled
+     */
+    private AdaptiveWriteThrottle getWriteThrottle(DB db) {
+        if (throttleMaxDocsPerSec > 0) {
+            ReplicationStatusProvider p = replicationStatusProvider;
+            if (p == null && throttleMaxLagMsec > 0) {
+                p = new MongoReplicationStatusProvider(db);
+            }
+            return new AdaptiveWriteThrottle(throttleMinDocsPerSec, throttleMaxDocsPerSec,
+                    throttleTargetLatencyMsec, throttleMaxLagMsec, p);
+        } else {
+            return null;
+        }
+    }
+
+    public int getDeleteBatchSize() {
+        return deleteBatchSize;
+    }
+
+    /**
+     * Sets the number of documents removed at once by iterative
+     * deletes
+     */
+    public void setDeleteBatchSize(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("deleteBatchSize=" + n);
+        }
+        deleteBatchSize = n;
+    }
+
+    public int getUpdateBatchSize() {
+        return updateBatchSize;
+    }
+
+    /**
+     * Sets the number of documents read and written at once by
+     * iterative updates
+     */
+    public void setUpdateBatchSize(int n) {
+        if (n < 1) {
+            throw new IllegalArgumentException("updateBatchSize=" + n);
+        }
+        updateBatchSize = n;
+    }
     
     /**
      * Insertion operation for mongo
@@ -245,10 +470,59 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 }
 
                 // If there are any constraints for updated fields, or if we're updating arrays, we have to use iterate-update
-                Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
-
-                DocUpdater docUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval, translator, updater,
-                        projector, errorProjector);
+                DocUpdater docUpdater = null;
+                Set<Path> updatedFields = getUpdatedFields(update);
+                LOGGER.debug("Updated fields: {}", updatedFields);
+                boolean validate = updatedFields == null || hasConstrainedFields(md, updatedFields);
+                if (!validate && !hasInaccessibleFields(roleEval, updatedFields)) {
+                    try {
+                        DBObject mongoUpdateExpr = translator.translate(md, update);
+                        LOGGER.debug("Translated update {}", mongoUpdateExpr);
+                        if (projector == null && serverSideBulkWrites && !hasHooks(md)) {
+                            docUpdater = new BasicDocUpdater(mongoUpdateExpr);
+                        } else {
+                            docUpdater = new AtomicIterateUpdate(ctx.getFactory().getNodeFactory(), roleEval, translator,
+                                    mongoUpdateExpr, projector, updatedFields);
+                        }
+                    } catch (CannotTranslateException e) {
+                        LOGGER.debug("Cannot translate update expression: {}", e.getMessage());
+                    }
+                }
+                if (docUpdater == null) {
+                    Updater updater = Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update);
+                    IterateAndUpdate iterateUpdater = new IterateAndUpdate(ctx.getFactory().getNodeFactory(), validator, roleEval,
+                            translator, updater, projector, errorProjector);
+                    iterateUpdater.setBatchSize(updateBatchSize);
+                    // Documents are valid before the update, so they only need to be
+                    // validated if the update touches constrained fields
+                    iterateUpdater.setValidateDocuments(validate);
+                    iterateUpdater.setThrottle(getWriteThrottle(db));
+                    // Document interceptors are called around each write unless they are known not to be used
+                    iterateUpdater.setBatchWrites(serverSideBulkWrites);
+                    iterateUpdater.setErrorContext(OP_UPDATE);
+                    if (iterateChunkSize > 0) {
+                        iterateUpdater.setChunkSize(iterateChunkSize);
+                        if (jobCollection != null) {
+                            iterateUpdater.setCheckpoint(openJob(ctx, db, OP_UPDATE, md, mongoQuery, update));
+                        }
+                    }
+                    ExecutorService executor;
+                    int nThreads;
+                    synchronized (this) {
+                        executor = updateExecutor;
+                        nThreads = updateThreads;
+                    }
+                    if (executor != null) {
+                        for (int i = 0; i < nThreads; i++) {
+                            iterateUpdater.addWorker(ctx.getFactory().getConstraintValidator(md),
+                                    Updater.getInstance(ctx.getFactory().getNodeFactory(), md, update),
+                                    new Translator(ctx, ctx.getFactory().getNodeFactory()),
+                                    new FieldAccessRoleEvaluator(md, ctx.getCallerRoles()));
+                        }
+                        iterateUpdater.setExecutor(executor);
+                    }
+                    docUpdater = iterateUpdater;
+                }
                 ctx.setProperty(PROP_UPDATER, docUpdater);
                 docUpdater.update(ctx, coll, md, response, mongoQuery);
                 ctx.getHookManager().queueHooks(ctx);
@@ -286,7 +560,25 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
                 LOGGER.debug("Translated query {}", mongoQuery);
                 DB db = dbResolver.get((MongoDataStore) md.getDataStore());
                 DBCollection coll = db.getCollection(((MongoDataStore) md.getDataStore()).getCollectionName());
-                DocDeleter deleter = new IterateDeleter(translator);
+                DocDeleter deleter;
+                if (serverSideBulkWrites && getDeleteHooks(md).isEmpty()) {
+                    deleter = new BasicDocDeleter();
+                } else {
+                    IterateDeleter iterateDeleter = new IterateDeleter(translator);
+                    iterateDeleter.setThrottle(getWriteThrottle(db));
+                    iterateDeleter.setBatchSize(deleteBatchSize);
+                    if (serverSideBulkWrites) {
+                        // Documents are only needed for hooks
+                        iterateDeleter.setProjection(getDeleteHookProjection(md));
+                    }
+                    if (iterateChunkSize > 0) {
+                        iterateDeleter.setChunkSize(iterateChunkSize);
+                        if (jobCollection != null) {
+                            iterateDeleter.setCheckpoint(openJob(ctx, db, OP_DELETE, md, mongoQuery, null));
+                        }
+                    }
+                    deleter = iterateDeleter;
+                }
                 ctx.setProperty(PROP_DELETER, deleter);
                 deleter.delete(ctx, coll, mongoQuery, response);
                 ctx.getHookManager().queueHooks(ctx);
@@ -380,9 +672,9 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
     @Override
     public <E extends Extension> E getExtensionInstance(Class<? extends Extension> extensionClass) {
         if(extensionClass.equals(LockingSupport.class))
-            return (E)new MongoLockingSupport(this);
+            return (E)lockingSupport;
         else if(extensionClass.equals(ValueGeneratorSupport.class))
-            return (E)new MongoSequenceSupport(this);
+            return (E)sequenceSupport;
         return null;
     }
     
@@ -653,6 +945,178 @@ public class MongoCRUDController implements CRUDController, MetadataListener, Ex
         return false;
     }
 
+    /**
+     * Starts a new job for a chunked update or delete, or resumes the
+     * job given in the PROP_RESUME_JOB property. The job id is stored
+     * in the PROP_JOB property.
+     */
+    private JobCheckpoint openJob(CRUDOperationContext ctx,
+                                  DB db,
+                                  String op,
+                                  EntityMetadata md,
+                                  DBObject mongoQuery,
+                                  UpdateExpression update) {
+        Object resumeJobId = ctx.getProperty(PROP_RESUME_JOB);
+        JobCheckpoint cp = JobCheckpoint.open(db.getCollection(jobCollection), op, md.getName(), mongoQuery.toString(),
+                update == null ? null : update.toString(), resumeJobId == null ? null : resumeJobId.toString());
+        ctx.setProperty(PROP_JOB, cp.getJobId());
+        return cp;
+    }
+
+    /**
+     * Returns the fields modified by the update expression, including
+     * the array size fields that may change as a side effect. Returns
+     * null if the modified fields cannot be determined.
+     */
+    private static Set<Path> getUpdatedFields(UpdateExpression update) {
+        Set<Path> fields = new HashSet<>();
+        if (getUpdatedFields(update, fields)) {
+            return fields;
+        } else {
+            return null;
+        }
+    }
+
+    private static boolean getUpdatedFields(UpdateExpression update, Set<Path> dest) {
+        if (update instanceof SetExpression) {
+            for (FieldAndRValue frv : ((SetExpression) update).getFields()) {
+                addUpdatedField(frv.getField(), dest);
+            }
+        } else if (update instanceof UnsetExpression) {
+            for (Path field : ((UnsetExpression) update).getFields()) {
+                addUpdatedField(field, dest);
+            }
+        } else if (update instanceof ArrayAddExpression) {
+            ArrayAddExpression add = (ArrayAddExpression) update;
+            addUpdatedField(add.getOp() == UpdateOperator._insert ? add.getField().prefix(-1) : add.getField(), dest);
+        } else if (update instanceof ForEachExpression) {
+            addUpdatedField(((ForEachExpression) update).getField(), dest);
+        } else if (update instanceof UpdateExpressionList) {
+            for (PartialUpdateExpression x : ((UpdateExpressionList) update).getList()) {
+                if (!getUpdatedFields(x, dest)) {
+                    return false;
+                }
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the field, and the array size field for it in case it is
+     * an array
+     */
+    private static void addUpdatedField(Path field, Set<Path> dest) {
+        dest.add(field);
+        dest.add(new Path(field.toString() + "#"));
+    }
+
+    /**
+     * Returns true if any of the updated fields, their ancestors, or
+     * their descendants have constraints, or if there are entity
+     * constraints. If so, the updated documents have to be validated.
+     */
+    private static boolean hasConstrainedFields(EntityMetadata md, Set<Path> updatedFields) {
+        List<EntityConstraint> entityConstraints = md.getConstraints();
+        if (entityConstraints != null && !entityConstraints.isEmpty()) {
+            return true;
+        }
+        FieldCursor cursor = md.getFieldCursor();
+        while (cursor.next()) {
+            FieldTreeNode node = cursor.getCurrentNode();
+            if (node instanceof Field) {
+                List<FieldConstraint> constraints = ((Field) node).getConstraints();
+                if (constraints != null && !constraints.isEmpty()) {
+                    Path constrainedField = cursor.getCurrentPath();
+                    for (Path updatedField : updatedFields) {
+                        if (pathsOverlap(constrainedField, updatedField)) {
+                            LOGGER.debug("Updated field {} overlaps with constrained field {}", updatedField, constrainedField);
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if the caller cannot update any of the updated fields
+     */
+    private static boolean hasInaccessibleFields(FieldAccessRoleEvaluator roleEval, Set<Path> updatedFields) {
+        for (Path x : roleEval.getInaccessibleFields(FieldAccessRoleEvaluator.Operation.update)) {
+            for (Path updatedField : updatedFields) {
+                if (pathsOverlap(x, updatedField)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns true if one of the paths is a prefix of the other. Any
+     * '*' matches any segment.
+     */
+    private static boolean pathsOverlap(Path p1, Path p2) {
+        int n = Math.min(p1.numSegments(), p2.numSegments());
+        for (int i = 0; i < n; i++) {
+            String s1 = p1.head(i);
+            String s2 = p2.head(i);
+            if (!s1.equals(s2) && !s1.equals(Path.ANY) && !s2.equals(Path.ANY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the entity has hooks. Hooks need the documents
+     * affected by the operation.
+     */
+    private static boolean hasHooks(EntityMetadata md) {
+        Hooks hooks = md.getEntityInfo().getHooks();
+        return hooks != null && hooks.getHooks() != null && !hooks.getHooks().isEmpty();
+    }
+
+    /**
+     * Returns the hooks of the entity that are called for deletions
+     */
+    private static List<Hook> getDeleteHooks(EntityMetadata md) {
+        List<Hook> ret = new ArrayList<>();
+        Hooks hooks = md.getEntityInfo().getHooks();
+        if (hooks != null && hooks.getHooks() != null) {
+            for (Hook hook : hooks.getHooks()) {
+                if (hook.isDelete()) {
+                    ret.add(hook);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Returns a mongo projection that includes all the fields required
+     * by the delete hooks, or null if all fields are required
+     */
+    private static DBObject getDeleteHookProjection(EntityMetadata md) {
+        Set<Path> fields = new HashSet<>();
+        for (Hook hook : getDeleteHooks(md)) {
+            Projection p = hook.getProjection();
+            if (p == null) {
+                return null;
+            }
+            fields.addAll(Translator.getRequiredFields(md, p, null, null));
+        }
+        BasicDBObject ret = new BasicDBObject(ID_STR, 1);
+        ret.append(Translator.OBJECT_TYPE_STR, 1);
+        for (Path f : fields) {
+            ret.append(Translator.translatePath(f), 1);
+        }
+        return ret;
+    }
+
     /**
      * Returns a projection containing the requested projection, all identity
      * fields, and the objectType field
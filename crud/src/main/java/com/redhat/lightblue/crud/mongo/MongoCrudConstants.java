@@ -25,6 +25,7 @@ public final class MongoCrudConstants {
     public static final String ERR_INSERTION_ERROR = "mongo-crud:InsertionError";
     public static final String ERR_SAVE_ERROR = "mongo-crud:SaveError";
     public static final String ERR_UPDATE_ERROR = "mongo-crud:UpdateError";
+    public static final String ERR_CONCURRENT_UPDATE = "mongo-crud:ConcurrentUpdate";
     public static final String ERR_NO_ACCESS = "mongo-crud:NoAccess";
     public static final String ERR_CONNECTION_ERROR = "mongo-crud:ConnectionError";
 
@@ -44,6 +45,10 @@ public final class MongoCrudConstants {
     public static final String ERR_CONFIGURATION_ERROR = "mongo=crud:ConfigurationError";
 
     public static final String ERR_NO_SEQUENCE_NAME = "mongo-crud:NoSequenceName";
+
+    public static final String ERR_CANNOT_RESUME_JOB = "mongo-crud:CannotResumeJob";
+    public static final String ERR_JOB_NOT_OWNED = "mongo-crud:JobNotOwned";
+    public static final String ERR_MIXED_ID_TYPES = "mongo-crud:MixedIdTypes";
     
     private MongoCrudConstants() {
 
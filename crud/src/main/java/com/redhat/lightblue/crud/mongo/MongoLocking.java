@@ -20,6 +20,19 @@ package com.redhat.lightblue.crud.mongo;
 
 import java.util.Date;
 import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,6 +40,11 @@ import org.slf4j.LoggerFactory;
 import com.mongodb.WriteConcern;
 import com.mongodb.WriteResult;
 import com.mongodb.BasicDBObject;
+import com.mongodb.Bytes;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCursor;
 import com.mongodb.DBCollection;
 import com.mongodb.MongoException;
 import com.mongodb.DBObject;
@@ -49,7 +67,176 @@ public class MongoLocking implements Locking {
     private DBCollection coll;
     private long defaultTTL=60l*60l*1000l;// 1 hr
 
+    /**
+     * Default number of seconds after expiration the server removes
+     * an expired lock. The grace period tolerates clock differences
+     * between the clients and the server. Removal of expired locks is
+     * only housekeeping, an expired lock is available for acquisition
+     * regardless of whether it is removed or not.
+     */
+    public static final long DEFAULT_EXPIRED_LOCK_GRACE_PERIOD=10l*60l;// 10 min
+
+    private final long expiredLockGracePeriod;
+
+    /**
+     * Locks acquired through this instance, so ping and release don't
+     * have to read the lock. Entries are removed when the lock is
+     * released, found to be lost, or taken over, and locks that
+     * expired are swept out periodically.
+     */
+    private final Map<String,LocalLock> localLocks=new ConcurrentHashMap<>();
+
+    /**
+     * How often expired locks are swept out of localLocks
+     */
+    private static final long SWEEP_INTERVAL=60l*1000l;
+
+    private volatile long nextSweep=System.currentTimeMillis()+SWEEP_INTERVAL;
+
+    private volatile LockingMetrics metrics=new LockingMetrics();
+
+    /**
+     * Threads of this JVM waiting for a resource
+     */
+    private final Map<String,ResourceWaiter> waiters=new HashMap<>();
+
+    private long minBackoff=10l;
+    private long maxBackoff=1000l;
+
+    private DBCollection notificationColl;
+    private NotificationTailer tailer;
+
+    /**
+     * The ttl, acquisition time and last known expiration of a lock
+     * acquired through this instance. The acquisition time is -1 if
+     * the lock is acquired through another instance.
+     */
+    private static final class LocalLock {
+        private final long acquiredAt;
+        private volatile long ttl;
+        private volatile long expiration;
+
+        public LocalLock(long acquiredAt,long ttl,long expiration) {
+            this.acquiredAt=acquiredAt;
+            this.ttl=ttl;
+            this.expiration=expiration;
+        }
+
+        public void renew(long ttl,long expiration) {
+            this.ttl=ttl;
+            this.expiration=expiration;
+        }
+    }
+
+    /**
+     * Threads waiting for a resource. Only the thread holding the
+     * poller permit polls the database, the others wait for it.
+     */
+    private static final class ResourceWaiter {
+        private final Semaphore poller=new Semaphore(1,true);
+        private int refCount;
+        private boolean signalled;
+
+        public synchronized void await(long msec) throws InterruptedException {
+            if(!signalled)
+                wait(msec);
+            signalled=false;
+        }
+
+        public synchronized void signal() {
+            signalled=true;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Tails the notification collection, and wakes up the local
+     * threads waiting for the released resources
+     */
+    private final class NotificationTailer extends Thread {
+        private final DBCollection coll;
+        private volatile boolean stopped=false;
+
+        public NotificationTailer(DBCollection coll) {
+            super("mongo-lock-notifications-"+coll.getName());
+            this.coll=coll;
+            setDaemon(true);
+        }
+
+        public void shutdown() {
+            stopped=true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            boolean reopened=false;
+            while(!stopped) {
+                DBCursor cursor=null;
+                try {
+                    // The notifications already in the collection are
+                    // skipped up to the last one. They are matched by
+                    // their position, not by their timestamps, which
+                    // come from the clocks of other nodes
+                    Object skipUntil=null;
+                    DBCursor last=coll.find().sort(new BasicDBObject("$natural",-1)).limit(1);
+                    try {
+                        if(last.hasNext())
+                            skipUntil=last.next().get(MongoCRUDController.ID_STR);
+                    } finally {
+                        last.close();
+                    }
+                    cursor=coll.find().
+                        addOption(Bytes.QUERYOPTION_TAILABLE).
+                        addOption(Bytes.QUERYOPTION_AWAITDATA);
+                    if(reopened) {
+                        // Releases published while the cursor was not
+                        // open are missed, let all the waiters poll
+                        wakeUpAll();
+                        reopened=false;
+                    }
+                    while(!stopped&&cursor.hasNext()) {
+                        DBObject notification=cursor.next();
+                        if(skipUntil!=null) {
+                            if(skipUntil.equals(notification.get(MongoCRUDController.ID_STR)))
+                                skipUntil=null;
+                            continue;
+                        }
+                        Object resourceId=notification.get(RESOURCEID);
+                        if(resourceId!=null)
+                            wakeUp(resourceId.toString());
+                    }
+                } catch (RuntimeException e) {
+                    if(!stopped)
+                        LOGGER.debug("Notification cursor failed: {}",e);
+                } finally {
+                    if(cursor!=null)
+                        cursor.close();
+                }
+                if(!stopped) {
+                    // The cursor is dead, polling covers the notifications until it is reopened
+                    reopened=true;
+                    try {
+                        Thread.sleep(maxBackoff);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
     public MongoLocking(DBCollection coll) {
+        this(coll,DEFAULT_EXPIRED_LOCK_GRACE_PERIOD);
+    }
+
+    /**
+     * @param coll The lock collection
+     * @param expiredLockGracePeriod Expired locks are removed by the
+     * server this many seconds after their expiration
+     */
+    public MongoLocking(DBCollection coll,long expiredLockGracePeriod) {
+        this.expiredLockGracePeriod=expiredLockGracePeriod;
         init(coll);
     }
 
@@ -59,148 +246,356 @@ public class MongoLocking implements Locking {
         BasicDBObject keys=new BasicDBObject(RESOURCEID,1);
         BasicDBObject options=new BasicDBObject("unique",1);
         this.coll.ensureIndex(keys,options);
+        ensureExpirationIndex();
+    }
+
+    /**
+     * Creates the TTL index on the expiration field, so the server
+     * removes abandoned locks. If the index exists with a different
+     * grace period, it is modified.
+     */
+    private void ensureExpirationIndex() {
+        BasicDBObject keys=new BasicDBObject(EXPIRATION,1);
+        try {
+            coll.ensureIndex(keys,new BasicDBObject("expireAfterSeconds",expiredLockGracePeriod));
+        } catch (MongoException e) {
+            LOGGER.debug("Cannot create expiration index, modifying the existing one: {}",e);
+            coll.getDB().command(new BasicDBObject("collMod",coll.getName()).
+                                 append("index",new BasicDBObject("keyPattern",keys).
+                                        append("expireAfterSeconds",expiredLockGracePeriod))).
+                throwOnError();
+        }
     }
 
     public void setDefaultTTL(long l) {
         defaultTTL=l;
     }
 
+    public LockingMetrics getMetrics() {
+        return metrics;
+    }
+
+    public void setMetrics(LockingMetrics metrics) {
+        this.metrics=metrics;
+    }
+
     /**
-     * Attempts to insert a lock record to the db
-     *
-     * @returns true if successful, false if lock already exists. Any other case would be an exception.
+     * Returns how long the lock was held, and forgets it. Returns -1
+     * if the lock is not acquired through this instance
      */
-    private boolean acquire(String callerId,String resourceId, Long ttl, Date now, Date expiration) {
-        BasicDBObject update=new BasicDBObject().
-            append(CALLERID,callerId).
-            append(RESOURCEID,resourceId).
-            append(TIMESTAMP,now).
-            append(TTL, ttl).
-            append(EXPIRATION,expiration).
-            append(COUNT,1).
-            append(VERSION,1);
+    private long holdTime(String callerId,String resourceId) {
+        LocalLock l=localLocks.remove(key(callerId,resourceId));
+        return l==null||l.acquiredAt<0?-1:System.currentTimeMillis()-l.acquiredAt;
+    }
 
-        try {
-            LOGGER.debug("insert: {}",update);
-            coll.insert(update,WriteConcern.SAFE);
-        } catch (MongoException.DuplicateKey e) {
-            return false;
+    private Long getTTL(String callerId,String resourceId) {
+        LocalLock l=localLocks.get(key(callerId,resourceId));
+        return l==null?null:l.ttl;
+    }
+
+    /**
+     * Records that the lock is held with the given ttl until the given
+     * expiration
+     */
+    private void renewed(String callerId,String resourceId,long ttl,long expiration) {
+        LocalLock l=localLocks.get(key(callerId,resourceId));
+        if(l==null)
+            localLocks.put(key(callerId,resourceId),new LocalLock(-1,ttl,expiration));
+        else
+            l.renew(ttl,expiration);
+    }
+
+    /**
+     * Removes the locks that expired without being released. A lock
+     * renewed through another instance may be removed as well, then
+     * it is read from the database when needed.
+     */
+    private void sweepExpired() {
+        long now=System.currentTimeMillis();
+        if(now<nextSweep)
+            return;
+        nextSweep=now+SWEEP_INTERVAL;
+        for(Iterator<LocalLock> itr=localLocks.values().iterator();itr.hasNext();)
+            if(itr.next().expiration<=now)
+                itr.remove();
+    }
+
+    /**
+     * Sets the bounds of the exponential backoff used by the blocking
+     * acquire. Defaults are 10 msecs and 1 second.
+     */
+    public void setBackoff(long minMsec,long maxMsec) {
+        if(minMsec<1||maxMsec<minMsec)
+            throw new IllegalArgumentException("backoff="+minMsec+"-"+maxMsec);
+        minBackoff=minMsec;
+        maxBackoff=maxMsec;
+    }
+
+    /**
+     * Sets a capped collection used to notify other instances about
+     * released locks. The waiters of all instances using the same
+     * notification collection are woken up when a lock is released,
+     * instead of waiting for their next poll. The collection is
+     * created if it doesn't exist.
+     */
+    public synchronized void setNotificationCollection(DBCollection c,long sizeBytes) {
+        if(tailer!=null) {
+            tailer.shutdown();
+            tailer=null;
         }
-        return true;
+        notificationColl=c;
+        if(c!=null) {
+            if(!c.getDB().collectionExists(c.getName())) {
+                try {
+                    c.getDB().createCollection(c.getName(),new BasicDBObject("capped",true).append("size",sizeBytes));
+                    // A tailable cursor on an empty collection is dead
+                    c.insert(new BasicDBObject(TIMESTAMP,new Date(0)),WriteConcern.SAFE);
+                } catch (MongoException e) {
+                    // Created by someone else
+                    LOGGER.debug("Cannot create {}: {}",c.getName(),e);
+                }
+            }
+            tailer=new NotificationTailer(c);
+            tailer.start();
+        }
+    }
+
+    /**
+     * Stops tailing the notification collection
+     */
+    public synchronized void close() {
+        if(tailer!=null) {
+            tailer.shutdown();
+            tailer=null;
+        }
+    }
+
+    private static String key(String callerId,String resourceId) {
+        return callerId+"\u0000"+resourceId;
+    }
+
+    /**
+     * Returns true if the exception is a duplicate key error. Errors
+     * of commands like findAndModify are not reported as DuplicateKey
+     */
+    private static boolean isDuplicateKey(MongoException e) {
+        return e instanceof MongoException.DuplicateKey ||
+            e.getCode()==11000 ||
+            e.getCode()==11001 ||
+            (e.getMessage()!=null&&e.getMessage().contains("E11000"));
     }
 
     /**
      * Attempt to acquire a lock. If successful, return true, otherwise return false.
      */
     public boolean acquire(String callerId,String resourceId,Long ttl) {
+        return tryAcquire(callerId,resourceId,ttl,true);
+    }
+
+    /**
+     * Attempts to acquire a lock once. A failure is recorded in the
+     * metrics only if recordFailure is true.
+     */
+    private boolean tryAcquire(String callerId,String resourceId,Long ttl,boolean recordFailure) {
         /*
-          Creating an atomic acquire() method in mongodb is not
-          easy. The key is to use the uniqueness of a unique index, in
-          this case, a unique index on resourceId. There can be at
-          most one lock record for a resource in the db at any given
-          time. 
-
-          The insertion operation is atomic: if it is successful, we
-          acquire the lock. We assume the update operation is
-          transactional: once a document is found to be matching to
-          the query of the update operation, it is locked, and no
-          other caller can modify that document until our update
-          operation is complete.
-
-          We will use a version number to make sure we are updating
-          the correct doc.
+          The unique index on resourceId makes sure there is at most
+          one lock record for a resource. findAndModify is atomic on
+          a single document, so the conditions in the queries are
+          evaluated and the updates are applied without any other
+          caller modifying the lock in between. Every modification
+          increments the version of the lock.
+
+          First, we try to create the lock, or take over an expired
+          or released lock, with a single upsert. If the lock is
+          held, the upsert fails with a duplicate key error, and we
+          try to increment the lock count assuming the lock is ours.
+
+          Expired locks may be removed by the server at any time
+          after their grace period. If the lock disappears after the
+          upsert failed, the second attempt fails as well, and the
+          whole sequence is retried once.
          */
         LOGGER.debug("acquire({}/{},ttl={})",callerId,resourceId,ttl);
-        // Try to insert doc
-        Date now=new Date();
-        Date expiration;
         if(ttl==null)
             ttl=defaultTTL;
-        expiration=new Date(now.getTime()+ttl);
-        LOGGER.debug("{}/{}: lock will expire on {}",callerId,resourceId,expiration);
-        BasicDBObject query;
-        BasicDBObject update;
-        WriteResult wr;
-        int readVer=-1;
-        String readCallerId=null;
-        int readCount=-1;
-        boolean locked=acquire(callerId,resourceId,ttl,now,expiration);
-        if(!locked) {
-            // At this point, we can add "if expired" predicate to the
-            // queries to filter expired locks, but it is not safe to
-            // rely on timestamps. Not all nodes have the same
-            // timestamp, and any node can wait an arbitrary amount of
-            // time at any point. So, we read the existing lock at
-            // this point, and use the version number for all the
-            // updates. if anybody updates the lock before we do, the
-            // version number will change, and we will fail.
-            query=new BasicDBObject(RESOURCEID,resourceId);
-            LOGGER.debug("find: {}",query);
-            DBObject lockObject=coll.findOne(query);
-            if(lockObject==null) {
-                LOGGER.debug("{}/{}: lock cannot be read. Retrying to acquire",callerId,resourceId);
-                locked=acquire(callerId,resourceId,ttl,now,expiration);
-                LOGGER.debug("{}/{}: acquire result: {}",callerId,resourceId,locked);
-                // No need to continue here. If insertion fails, that means someone else inserted a record
-                return locked;
-            }
-            readVer=((Number)lockObject.get(VERSION)).intValue();
-            readCallerId=(String)lockObject.get(CALLERID);
-            readCount=((Number)lockObject.get(COUNT)).intValue();
-            
-            // Lock already exists
-            // Possibilities:
-            //  - lock is not expired, but ours : increment count
-            //  - lock is not expired, but someone else owns it : fail
-            //  - lock is expired : attempt to acquire
-            //  - lock count is less than 1 : attempt to acquire
-
-            // lock is not expired and we own it: increment lock count
-            LOGGER.debug("{}/{} locked, assuming lock is ours, attempting to increment lock count",callerId,resourceId);
-            if(readCallerId.equals(callerId)) {
-                query=new BasicDBObject().
-                    append(CALLERID,callerId).
-                    append(RESOURCEID,resourceId).
-                    append(EXPIRATION,new BasicDBObject("$gt",now)).
-                    append(VERSION,readVer);
-                update=new BasicDBObject().
-                    append("$set",new BasicDBObject(TIMESTAMP,now).
-                           append(EXPIRATION,expiration).
-                           append(TTL,ttl)).
-                    append("$inc",new BasicDBObject(VERSION,1).
-                           append(COUNT,1));
-                LOGGER.debug("update: {} {}",query,update);
-                wr=coll.update(query,update,false,false,WriteConcern.SAFE);
-                if(wr.getN()==1) {
-                    LOGGER.debug("{}/{} locked again",callerId,resourceId);
-                    locked=true;
-                }
-            }
-        }
-        if(!locked) {
-            // assume lock is expired or count <=0, and try to acquire it
-            LOGGER.debug("{}/{} lock is expired or count <= 0, attempting to reacquire expired lock", callerId, resourceId);
-            query=new BasicDBObject().
+        sweepExpired();
+        long start=System.currentTimeMillis();
+        for(int attempt=0;attempt<2;attempt++) {
+            Date now=new Date();
+            Date expiration=new Date(now.getTime()+ttl);
+            LOGGER.debug("{}/{}: lock will expire on {}",callerId,resourceId,expiration);
+            BasicDBObject query=new BasicDBObject().
                 append(RESOURCEID,resourceId).
                 append("$or",Arrays.asList(new BasicDBObject(EXPIRATION,new BasicDBObject("$lte",now)),
-                                           new BasicDBObject(COUNT,new BasicDBObject("$lte",0)))).
-                append(VERSION,readVer);
-            update=new BasicDBObject().
+                                           new BasicDBObject(COUNT,new BasicDBObject("$lte",0))));
+            BasicDBObject update=new BasicDBObject().
                 append("$set",new BasicDBObject(CALLERID,callerId).
                        append(TIMESTAMP,now).
                        append(EXPIRATION,expiration).
                        append(TTL,ttl).
                        append(COUNT,1)).
                 append("$inc",new BasicDBObject(VERSION,1));
-            LOGGER.debug("update: {} {}",query,update);
-            wr=coll.update(query,update,false,false,WriteConcern.SAFE);
-            if(wr.getN()==1) {
+            try {
+                LOGGER.debug("findAndModify/upsert: {} {}",query,update);
+                // Returns the old lock if it is taken over, null if it is created
+                DBObject old=coll.findAndModify(query,null,null,false,update,false,true);
                 LOGGER.debug("{}/{} locked",callerId,resourceId);
-                locked=true;
+                if(old!=null&&old.get(CALLERID)!=null)
+                    localLocks.remove(key(old.get(CALLERID).toString(),resourceId));
+                localLocks.put(key(callerId,resourceId),new LocalLock(start,ttl,expiration.getTime()));
+                if(old==null)
+                    metrics.acquired(System.currentTimeMillis()-start);
+                else
+                    metrics.takeover(System.currentTimeMillis()-start);
+                return true;
+            } catch (MongoException e) {
+                if(!isDuplicateKey(e))
+                    throw e;
+            }
+
+            // Lock is held. If it is ours, increment lock count
+            LOGGER.debug("{}/{} locked, assuming lock is ours, attempting to increment lock count",callerId,resourceId);
+            query=new BasicDBObject().
+                append(RESOURCEID,resourceId).
+                append(CALLERID,callerId).
+                append(EXPIRATION,new BasicDBObject("$gt",now)).
+                append(COUNT,new BasicDBObject("$gt",0));
+            update=new BasicDBObject().
+                append("$set",new BasicDBObject(TIMESTAMP,now).
+                       append(EXPIRATION,expiration).
+                       append(TTL,ttl)).
+                append("$inc",new BasicDBObject(VERSION,1).
+                       append(COUNT,1));
+            LOGGER.debug("findAndModify: {} {}",query,update);
+            if(coll.findAndModify(query,null,null,false,update,true,false)!=null) {
+                LOGGER.debug("{}/{} locked again",callerId,resourceId);
+                renewed(callerId,resourceId,ttl,expiration.getTime());
+                metrics.reentrant(System.currentTimeMillis()-start);
+                return true;
+            }
+
+            // Someone else has the lock, or the lock expired or
+            // released after our first attempt. Retry only in the
+            // latter case. Either way, we don't have it
+            localLocks.remove(key(callerId,resourceId));
+            query=new BasicDBObject().
+                append(RESOURCEID,resourceId).
+                append(EXPIRATION,new BasicDBObject("$gt",now)).
+                append(COUNT,new BasicDBObject("$gt",0));
+            if(coll.findOne(query,new BasicDBObject(RESOURCEID,1))!=null)
+                break;
+            LOGGER.debug("{}/{}: lock is released, retrying to acquire",callerId,resourceId);
+        }
+        LOGGER.debug("{}/{}: not locked",callerId,resourceId);
+        if(recordFailure)
+            metrics.failed(resourceId,System.currentTimeMillis()-start);
+        return false;
+    }
+
+    /**
+     * Attempts to acquire a lock, waiting at most timeoutMsec msecs
+     * if the lock is held by someone else. The database is polled
+     * with jittered exponential backoff. Only one thread in this JVM
+     * polls for a given resource at any time, the other threads wait
+     * for it. Waiters are woken up early when the lock is released
+     * through this instance, or through an instance sharing the same
+     * notification collection. Only the outcome of the call is
+     * recorded in the metrics, not the individual attempts.
+     *
+     * @return true if the lock is acquired, false if timed out
+     */
+    public boolean acquire(String callerId,String resourceId,Long ttl,long timeoutMsec)
+        throws InterruptedException {
+        long start=System.currentTimeMillis();
+        long deadline=start+timeoutMsec;
+        if(tryAcquire(callerId,resourceId,ttl,false))
+            return true;
+        boolean timedOut=false;
+        ResourceWaiter waiter=getWaiter(resourceId);
+        try {
+            long remaining=deadline-System.currentTimeMillis();
+            if(remaining<=0||!waiter.poller.tryAcquire(remaining,TimeUnit.MILLISECONDS)) {
+                timedOut=true;
+                return false;
+            }
+            try {
+                long backoff=minBackoff;
+                while(true) {
+                    if(tryAcquire(callerId,resourceId,ttl,false))
+                        return true;
+                    remaining=deadline-System.currentTimeMillis();
+                    if(remaining<=0) {
+                        timedOut=true;
+                        return false;
+                    }
+                    long delay=Math.min(remaining,backoff/2+ThreadLocalRandom.current().nextLong(backoff/2+1));
+                    LOGGER.debug("{}/{}: waiting {} msecs",callerId,resourceId,delay);
+                    waiter.await(delay);
+                    backoff=Math.min(backoff*2,maxBackoff);
+                }
+            } finally {
+                waiter.poller.release();
+            }
+        } finally {
+            releaseWaiter(resourceId,waiter);
+            if(timedOut)
+                metrics.failed(resourceId,System.currentTimeMillis()-start);
+        }
+    }
+
+    private ResourceWaiter getWaiter(String resourceId) {
+        synchronized(waiters) {
+            ResourceWaiter waiter=waiters.get(resourceId);
+            if(waiter==null) {
+                waiter=new ResourceWaiter();
+                waiters.put(resourceId,waiter);
+            }
+            waiter.refCount++;
+            return waiter;
+        }
+    }
+
+    private void releaseWaiter(String resourceId,ResourceWaiter waiter) {
+        synchronized(waiters) {
+            if(--waiter.refCount==0)
+                waiters.remove(resourceId);
+        }
+        // Let the next local waiter try without waiting for its backoff
+        waiter.signal();
+    }
+
+    private void wakeUp(String resourceId) {
+        ResourceWaiter waiter;
+        synchronized(waiters) {
+            waiter=waiters.get(resourceId);
+        }
+        if(waiter!=null)
+            waiter.signal();
+    }
+
+    private void wakeUpAll() {
+        List<ResourceWaiter> all;
+        synchronized(waiters) {
+            all=new ArrayList<>(waiters.values());
+        }
+        for(ResourceWaiter waiter:all)
+            waiter.signal();
+    }
+
+    /**
+     * Called when a lock is removed. Wakes up the local waiters, and
+     * notifies the other instances
+     */
+    private void lockReleased(String resourceId) {
+        wakeUp(resourceId);
+        DBCollection c=notificationColl;
+        if(c!=null) {
+            try {
+                c.insert(new BasicDBObject(RESOURCEID,resourceId).append(TIMESTAMP,new Date()),WriteConcern.UNACKNOWLEDGED);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot publish release of {}: {}",resourceId,e);
             }
         }
-        LOGGER.debug("{}/{}: {}",callerId,resourceId,locked?"locked":"not locked");
-        return locked;
     }
 
     /**
@@ -209,6 +604,7 @@ public class MongoLocking implements Locking {
     public boolean release(String callerId,String resourceId) {
         LOGGER.debug("release({}/{})",callerId,resourceId);
         Date now=new Date();
+        long start=now.getTime();
         // If lock count is only one, we can remove the lock
         BasicDBObject query=new BasicDBObject().
             append(CALLERID,callerId).
@@ -219,39 +615,202 @@ public class MongoLocking implements Locking {
         WriteResult wr=coll.remove(query,WriteConcern.SAFE);
         if(wr.getN()==1) {
             LOGGER.debug("{}/{} released",callerId,resourceId);
+            metrics.released(System.currentTimeMillis()-start,holdTime(callerId,resourceId));
+            lockReleased(resourceId);
             return true;
         }
-        // Retrieve the lock
-        query=new BasicDBObject(RESOURCEID,resourceId).
-            append(CALLERID,callerId);
-        DBObject lock=coll.findOne(query);
-        if(lock!=null) {
-            long ttl=((Number)lock.get(TTL)).longValue();
-            Date expiration=new Date(now.getTime()+ttl);
-            int ver=((Number)lock.get(VERSION)).intValue();
-            // Try decrementing the lock count of our lock
-            query=new BasicDBObject().
-                append(CALLERID,callerId).
-                append(RESOURCEID,resourceId).
-                append(EXPIRATION,new BasicDBObject("$gt",now)).
-                append(COUNT,new BasicDBObject("$gt",0)).
-                append(VERSION,ver);
-            BasicDBObject update=new BasicDBObject().
-                append("$set",new BasicDBObject(EXPIRATION,expiration).
-                       append(TTL,ttl).
-                       append(TIMESTAMP,now)).
-                append("$inc",new BasicDBObject(COUNT,-1).
-                       append(VERSION,1));
-            wr=coll.update(query,update,false,false,WriteConcern.SAFE);
-            if(wr.getN()==1) {
-                LOGGER.debug("{}/{} lock count decremented, still locked",callerId,resourceId);
-                return false;
-            }
+        // Try decrementing the lock count of our lock
+        query=new BasicDBObject().
+            append(CALLERID,callerId).
+            append(RESOURCEID,resourceId).
+            append(EXPIRATION,new BasicDBObject("$gt",now)).
+            append(COUNT,new BasicDBObject("$gt",1));
+        BasicDBObject set=new BasicDBObject(TIMESTAMP,now);
+        Long ttl=getTTL(callerId,resourceId);
+        if(ttl!=null)
+            set.append(EXPIRATION,new Date(now.getTime()+ttl));
+        BasicDBObject update=new BasicDBObject().
+            append("$set",set).
+            append("$inc",new BasicDBObject(COUNT,-1).
+                   append(VERSION,1));
+        LOGGER.debug("findAndModify: {} {}",query,update);
+        if(coll.findAndModify(query,null,null,false,update,true,false)!=null) {
+            LOGGER.debug("{}/{} lock count decremented, still locked",callerId,resourceId);
+            if(ttl!=null)
+                renewed(callerId,resourceId,ttl,now.getTime()+ttl);
+            metrics.released(System.currentTimeMillis()-start,-1);
+            return false;
         }
         // Both attempts failed, Lock is no longer owned by us
+        localLocks.remove(key(callerId,resourceId));
+        metrics.releaseFailed(System.currentTimeMillis()-start);
         throw new InvalidLockException(resourceId);
     }
 
+    /**
+     * Acquires locks for all the given resources, or none of them. The
+     * resources are locked in sorted order, so callers locking
+     * overlapping sets of resources don't contend in different
+     * orders. Locks that don't exist are created with a single batch
+     * insert, the remaining ones are acquired one by one. If any of
+     * the locks cannot be acquired, the locks acquired by this call
+     * are released.
+     *
+     * @return true if all the resources are locked
+     */
+    public boolean acquireAll(String callerId,Collection<String> resourceIds,Long ttl) {
+        LOGGER.debug("acquireAll({}/{},ttl={})",callerId,resourceIds,ttl);
+        if(ttl==null)
+            ttl=defaultTTL;
+        List<String> sorted=new ArrayList<>(new TreeSet<>(resourceIds));
+        if(sorted.isEmpty())
+            return true;
+        long start=System.currentTimeMillis();
+        Date now=new Date();
+        Date expiration=new Date(now.getTime()+ttl);
+        BulkWriteOperation bulk=coll.initializeOrderedBulkOperation();
+        for(String resourceId:sorted) {
+            bulk.insert(new BasicDBObject().
+                        append(CALLERID,callerId).
+                        append(RESOURCEID,resourceId).
+                        append(TIMESTAMP,now).
+                        append(TTL,ttl).
+                        append(EXPIRATION,expiration).
+                        append(COUNT,1).
+                        append(VERSION,1));
+        }
+        // An ordered bulk insert stops at the first error, so the
+        // resources before the failing one are locked
+        int inserted;
+        try {
+            inserted=bulk.execute(WriteConcern.SAFE).getInsertedCount();
+        } catch (BulkWriteException e) {
+            // The exception may only report a write concern error, in
+            // which case all the inserts were applied
+            List<BulkWriteError> errors=e.getWriteErrors();
+            inserted=errors.isEmpty()?e.getWriteResult().getInsertedCount():errors.get(0).getIndex();
+            if(e.getWriteConcernError()!=null||
+               errors.isEmpty()||
+               (errors.get(0).getCode()!=11000&&errors.get(0).getCode()!=11001)) {
+                rollback(callerId,sorted.subList(0,inserted));
+                throw e;
+            }
+        }
+        LOGGER.debug("{}: inserted {} locks",callerId,inserted);
+        for(String resourceId:sorted.subList(0,inserted)) {
+            localLocks.put(key(callerId,resourceId),new LocalLock(start,ttl,expiration.getTime()));
+            metrics.acquired(System.currentTimeMillis()-start);
+        }
+        for(int i=inserted;i<sorted.size();i++) {
+            boolean locked;
+            try {
+                locked=acquire(callerId,sorted.get(i),ttl);
+            } catch (RuntimeException e) {
+                rollback(callerId,sorted.subList(0,i));
+                throw e;
+            }
+            if(!locked) {
+                LOGGER.debug("{}/{}: not locked, rolling back",callerId,sorted.get(i));
+                rollback(callerId,sorted.subList(0,i));
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Releases the locks of all the given resources once. Locks that
+     * are held only once are removed with a single call, locks held
+     * more than once are released one by one.
+     *
+     * @throws InvalidLockException if some of the resources are not
+     * locked by the caller. The exception lists only those resources,
+     * the others are released.
+     */
+    public void releaseAll(String callerId,Collection<String> resourceIds) {
+        LOGGER.debug("releaseAll({}/{})",callerId,resourceIds);
+        List<String> sorted=new ArrayList<>(new TreeSet<>(resourceIds));
+        if(sorted.isEmpty())
+            return;
+        Date now=new Date();
+        BasicDBObject query=new BasicDBObject().
+            append(CALLERID,callerId).
+            append(RESOURCEID,new BasicDBObject("$in",sorted)).
+            append(EXPIRATION,new BasicDBObject("$gt",now)).
+            append(COUNT,new BasicDBObject("$gt",0));
+        List<String> once=new ArrayList<>();
+        List<String> nested=new ArrayList<>();
+        DBCursor cursor=coll.find(query,new BasicDBObject(RESOURCEID,1).append(COUNT,1));
+        try {
+            while(cursor.hasNext()) {
+                DBObject lock=cursor.next();
+                if(((Number)lock.get(COUNT)).intValue()==1)
+                    once.add((String)lock.get(RESOURCEID));
+                else
+                    nested.add((String)lock.get(RESOURCEID));
+            }
+        } finally {
+            cursor.close();
+        }
+        List<String> failed=new ArrayList<>(sorted);
+        failed.removeAll(once);
+        failed.removeAll(nested);
+        if(!once.isEmpty()) {
+            query.put(RESOURCEID,new BasicDBObject("$in",once));
+            query.put(COUNT,1);
+            LOGGER.debug("remove {}",query);
+            int n=coll.remove(query,WriteConcern.SAFE).getN();
+            if(n<once.size()) {
+                // Some locks expired after they were read. Expired
+                // locks are kept for the grace period, so the locks
+                // of the caller that are still there are the ones not
+                // removed. Locks another caller acquired after they
+                // were removed, or took over after they expired, are
+                // not the caller's anymore either way
+                cursor=coll.find(new BasicDBObject(RESOURCEID,new BasicDBObject("$in",once)).
+                                 append(CALLERID,callerId),new BasicDBObject(RESOURCEID,1));
+                try {
+                    while(cursor.hasNext()) {
+                        String resourceId=(String)cursor.next().get(RESOURCEID);
+                        once.remove(resourceId);
+                        failed.add(resourceId);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        long latency=System.currentTimeMillis()-now.getTime();
+        for(String resourceId:once) {
+            metrics.released(latency,holdTime(callerId,resourceId));
+            lockReleased(resourceId);
+        }
+        // release() records its own failures
+        boolean recordFailure=!failed.isEmpty();
+        for(String resourceId:nested) {
+            try {
+                release(callerId,resourceId);
+            } catch (InvalidLockException e) {
+                failed.add(resourceId);
+            }
+        }
+        if(!failed.isEmpty()) {
+            for(String resourceId:failed)
+                localLocks.remove(key(callerId,resourceId));
+            if(recordFailure)
+                metrics.releaseFailed(latency);
+            throw new InvalidLockException(failed.toString());
+        }
+    }
+
+    private void rollback(String callerId,List<String> resourceIds) {
+        try {
+            releaseAll(callerId,resourceIds);
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot release locks of {}: {}",callerId,e);
+        }
+    }
+
     public int getLockCount(String callerId,String resourceId) {
         Date now=new Date();
         BasicDBObject q=new BasicDBObject().
@@ -269,28 +828,83 @@ public class MongoLocking implements Locking {
             throw new InvalidLockException(resourceId);
     }
 
+    /**
+     * Extends the expiration of the locks of the given resources held
+     * by the caller with a single update.
+     *
+     * @return The resources whose locks are not held by the caller
+     * anymore, and cannot be renewed
+     */
+    public Set<String> pingAll(String callerId,Collection<String> resourceIds,long ttl) {
+        Set<String> lost=new HashSet<>(resourceIds);
+        if(lost.isEmpty())
+            return lost;
+        Date now=new Date();
+        int n=lost.size();
+        BasicDBObject q=new BasicDBObject().
+            append(CALLERID,callerId).
+            append(RESOURCEID,new BasicDBObject("$in",new ArrayList<>(lost))).
+            append(EXPIRATION,new BasicDBObject("$gt",now)).
+            append(COUNT,new BasicDBObject("$gt",0));
+        BasicDBObject update=new BasicDBObject().
+            append("$set",new BasicDBObject(TIMESTAMP,now).
+                   append(EXPIRATION,new Date(now.getTime()+ttl)).
+                   append(TTL,ttl)).
+            append("$inc",new BasicDBObject(VERSION,1));
+        WriteResult wr=coll.update(q,update,false,true,WriteConcern.SAFE);
+        if(wr.getN()<lost.size()) {
+            // Find out which ones are renewed
+            DBCursor cursor=coll.find(q,new BasicDBObject(RESOURCEID,1));
+            try {
+                while(cursor.hasNext())
+                    lost.remove((String)cursor.next().get(RESOURCEID));
+            } finally {
+                cursor.close();
+            }
+            for(String resourceId:lost)
+                localLocks.remove(key(callerId,resourceId));
+        } else {
+            lost.clear();
+        }
+        for(String resourceId:resourceIds)
+            if(!lost.contains(resourceId))
+                renewed(callerId,resourceId,ttl,now.getTime()+ttl);
+        metrics.pinged(n,lost.size(),System.currentTimeMillis()-now.getTime());
+        LOGGER.debug("{}/{} pinged, lost:{}",callerId,resourceIds,lost);
+        return lost;
+    }
+
     public void ping(String callerId,String resourceId) {
         Date now=new Date();
+        long start=now.getTime();
         BasicDBObject q=new BasicDBObject().
             append(CALLERID,callerId).
             append(RESOURCEID,resourceId).
             append(EXPIRATION,new BasicDBObject("$gt",now)).
             append(COUNT,new BasicDBObject("$gt",0));
-        DBObject lock=coll.findOne(q);
-        if(lock!=null) {
-            Date expiration=new Date(now.getTime()+((Number)lock.get(TTL)).longValue());
-            int ver=((Number)lock.get(VERSION)).intValue();
-            BasicDBObject update=new BasicDBObject().
-                append("$set",new BasicDBObject(TIMESTAMP,now).
-                       append(EXPIRATION,expiration)).
-                append("$inc",new BasicDBObject(VERSION,1));
-            q=q.append(VERSION,ver);
-            WriteResult wr=coll.update(q,update,false,false,WriteConcern.SAFE);
-            if(wr.getN()!=1)
+        Long ttl=getTTL(callerId,resourceId);
+        if(ttl==null) {
+            // Lock is acquired by another instance, read the ttl
+            DBObject lock=coll.findOne(q,new BasicDBObject(TTL,1));
+            if(lock==null) {
+                metrics.pinged(1,1,System.currentTimeMillis()-start);
                 throw new InvalidLockException(resourceId);
-            LOGGER.debug("{}/{} pinged",callerId,resourceId);
-        } else
+            }
+            ttl=((Number)lock.get(TTL)).longValue();
+        }
+        BasicDBObject update=new BasicDBObject().
+            append("$set",new BasicDBObject(TIMESTAMP,now).
+                   append(EXPIRATION,new Date(now.getTime()+ttl))).
+            append("$inc",new BasicDBObject(VERSION,1));
+        WriteResult wr=coll.update(q,update,false,false,WriteConcern.SAFE);
+        if(wr.getN()!=1) {
+            localLocks.remove(key(callerId,resourceId));
+            metrics.pinged(1,1,System.currentTimeMillis()-start);
             throw new InvalidLockException(resourceId);
+        }
+        renewed(callerId,resourceId,ttl,now.getTime()+ttl);
+        metrics.pinged(1,0,System.currentTimeMillis()-start);
+        LOGGER.debug("{}/{} pinged",callerId,resourceId);
     }
 
 }
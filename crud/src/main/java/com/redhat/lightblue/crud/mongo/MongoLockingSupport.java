@@ -18,9 +18,16 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
-import java.util.List;
-import java.util.ArrayList;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,87 +44,190 @@ import com.redhat.lightblue.extensions.synch.Locking;
 import com.redhat.lightblue.util.Error;
 import com.redhat.lightblue.common.mongo.MongoDataStore;
 
+/**
+ * Locking support using mongo collections. The locking domains are
+ * parsed from the controller configuration once, and the locking
+ * instances are created when a domain is first used, and reused
+ * afterwards. Domains using the same collection share a locking
+ * instance, so the lock index is ensured once per collection.
+ *
+ * A domain may optionally specify a "notificationCollection", a
+ * capped collection used to wake up the waiters of other instances
+ * when a lock is released, and an "expiredLockGracePeriod", the
+ * number of seconds after expiration the server removes an expired
+ * lock.
+ *
+ * Domains sharing a collection share the settings of the domain that
+ * first used the collection. A warning is logged if the other domains
+ * specify different settings.
+ *
+ * Lock metrics are kept per collection, because domains sharing a
+ * collection share a locking instance. They are registered over JMX
+ * as com.redhat.lightblue.mongo:type=Locking,collection=&lt;datasource:collection&gt;.
+ * Controllers using the same collection share the registered metrics.
+ * If the name is registered from another class loader, the metrics are
+ * registered with an additional instance=&lt;n&gt; key instead.
+ */
 public class MongoLockingSupport implements LockingSupport {
 
     private static final Logger LOGGER=LoggerFactory.getLogger(MongoLockingSupport.class);
 
+    /**
+     * Size of the capped lock notification collections
+     */
+    private static final long NOTIFICATION_COLLECTION_SIZE=1024l*1024l;
+
+    public static final String METRICS_DOMAIN="com.redhat.lightblue.mongo";
+
+    /**
+     * datasource:collection -> registered metrics, shared by all controllers
+     */
+    private static final Map<String,LockingMetrics> REGISTERED_METRICS=new HashMap<>();
+
     private final MongoCRUDController controller;
-    
+
+    /**
+     * domain -> domain configuration node, in configuration order
+     */
+    private final Map<String,ObjectNode> domains;
+
+    /**
+     * domain -> locking instance
+     */
+    private final Map<String,MongoLocking> domainLocks=new ConcurrentHashMap<>();
+
+    /**
+     * datasource:collection -> locking instance
+     */
+    private final Map<String,MongoLocking> collectionLocks=new ConcurrentHashMap<>();
+
+    /**
+     * datasource:collection -> configuration of the domain that created the locking instance
+     */
+    private final Map<String,ObjectNode> collectionConfigs=new ConcurrentHashMap<>();
+
     public MongoLockingSupport(MongoCRUDController controller) {
         this.controller=controller;
+        this.domains=parseDomains(controller.getControllerConfiguration());
+        LOGGER.debug("Domains:{}",domains.keySet());
     }
 
     @Override
     public String[] getLockingDomains() {
-        List<String> list=new ArrayList<>();
-        LOGGER.debug("Getting configured locking domains");
-        ControllerConfiguration cfg=controller.getControllerConfiguration();
-        if(cfg!=null) {
-            LOGGER.debug("Got controller configuration");
-            ObjectNode configNode=cfg.getExtensions();
-            if(configNode!=null) {
-                LOGGER.debug("Extensions: {}",configNode);
-                JsonNode x=configNode.get("locking");
-                if(x instanceof ArrayNode) {
-                    ArrayNode arr=(ArrayNode)x;
-                    LOGGER.debug("Locking:{}",arr);
-                    for(Iterator<JsonNode> domains=arr.elements();
-                        domains.hasNext();) {
-                        x=domains.next();
-                        if(x instanceof ObjectNode) {
-                            ObjectNode domain=(ObjectNode)x;
-                            JsonNode domainName=domain.get("domain");
-                            if(domainName!=null)
-                                list.add(domainName.asText());
-                        }
-                    }
+        return domains.keySet().toArray(new String[domains.size()]);
+    }
+
+    @Override
+    public Locking getLockingInstance(String domain) {
+        MongoLocking locking=domainLocks.get(domain);
+        if(locking==null) {
+            locking=createLockingInstance(domain);
+            domainLocks.put(domain,locking);
+        }
+        return locking;
+    }
+
+    /**
+     * Returns the lock metrics of a collection, registering them with
+     * the platform MBean server the first time. Registered metrics are
+     * never replaced.
+     */
+    private static LockingMetrics getMetrics(String collectionKey) {
+        synchronized(REGISTERED_METRICS) {
+            LockingMetrics metrics=REGISTERED_METRICS.get(collectionKey);
+            if(metrics==null) {
+                metrics=new LockingMetrics();
+                String name=METRICS_DOMAIN+":type=Locking,collection="+ObjectName.quote(collectionKey);
+                MBeanServer server=ManagementFactory.getPlatformMBeanServer();
+                try {
+                    ObjectName objectName=new ObjectName(name);
+                    // The name may be registered from another class loader
+                    for(int instance=1;server.isRegistered(objectName);instance++)
+                        objectName=new ObjectName(name+",instance="+instance);
+                    server.registerMBean(metrics,objectName);
+                } catch (JMException e) {
+                    LOGGER.warn("Cannot register lock metrics for {}: {}",collectionKey,e);
                 }
+                REGISTERED_METRICS.put(collectionKey,metrics);
             }
+            return metrics;
         }
-        LOGGER.debug("Domains:{}",list);
-        return list.toArray(new String[list.size()]);
     }
 
-    @Override
-    public Locking getLockingInstance(String domain) {
-        ObjectNode domainNode=findDomainNode(domain);
+    /**
+     * Warns if a domain sharing a collection with another domain
+     * specifies different settings, which are ignored
+     */
+    private static void checkSharedSettings(String domain,ObjectNode domainNode,ObjectNode sharedNode,String collectionKey) {
+        for(String setting:new String[] {"expiredLockGracePeriod","notificationCollection"}) {
+            JsonNode x=domainNode.get(setting);
+            JsonNode y=sharedNode.get(setting);
+            if(x==null?y!=null:!x.equals(y))
+                LOGGER.warn("Locking domain {} shares {} with domain {}, its {} setting {} is ignored, using {}",
+                            domain,collectionKey,sharedNode.get("domain"),setting,x,y);
+        }
+    }
+
+    private MongoLocking createLockingInstance(String domain) {
+        ObjectNode domainNode=domains.get(domain);
         if(domainNode==null)
             throw Error.get(MongoCrudConstants.ERR_INVALID_LOCKING_DOMAIN,domain);
         JsonNode datasourceName=domainNode.get("datasource");
         if(datasourceName==null)
             throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR,"locking."+domain+".datasource");
-        MongoDataStore store=new MongoDataStore();
-        store.setDatasourceName(datasourceName.asText());
-        DB db=controller.getDbResolver().get(store);
-        if(db==null)
-            throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR,"locking."+domain+".datasource");
         JsonNode collection=domainNode.get("collection");
         if(collection==null)
             throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR,"locking."+domain+".collection");
-        return new MongoLocking(db.getCollection(collection.asText()));
+        String key=datasourceName.asText()+":"+collection.asText();
+        synchronized(collectionLocks) {
+            MongoLocking locking=collectionLocks.get(key);
+            if(locking==null) {
+                MongoDataStore store=new MongoDataStore();
+                store.setDatasourceName(datasourceName.asText());
+                DB db=controller.getDbResolver().get(store);
+                if(db==null)
+                    throw Error.get(MongoCrudConstants.ERR_CONFIGURATION_ERROR,"locking."+domain+".datasource");
+                LOGGER.debug("Creating locking instance for {}",key);
+                JsonNode gracePeriod=domainNode.get("expiredLockGracePeriod");
+                locking=new MongoLocking(db.getCollection(collection.asText()),
+                                         gracePeriod==null?MongoLocking.DEFAULT_EXPIRED_LOCK_GRACE_PERIOD:gracePeriod.asLong());
+                JsonNode notifications=domainNode.get("notificationCollection");
+                if(notifications!=null)
+                    locking.setNotificationCollection(db.getCollection(notifications.asText()),NOTIFICATION_COLLECTION_SIZE);
+                collectionLocks.put(key,locking);
+                collectionConfigs.put(key,domainNode);
+                locking.setMetrics(getMetrics(key));
+            } else {
+                checkSharedSettings(domain,domainNode,collectionConfigs.get(key),key);
+            }
+            return locking;
+        }
     }
 
-    private ObjectNode findDomainNode(String domain) {
-        ControllerConfiguration cfg=controller.getControllerConfiguration();
+    private static Map<String,ObjectNode> parseDomains(ControllerConfiguration cfg) {
+        Map<String,ObjectNode> map=new LinkedHashMap<>();
+        LOGGER.debug("Getting configured locking domains");
         if(cfg!=null) {
             ObjectNode configNode=cfg.getExtensions();
             if(configNode!=null) {
+                LOGGER.debug("Extensions: {}",configNode);
                 JsonNode x=configNode.get("locking");
                 if(x instanceof ArrayNode) {
                     ArrayNode arr=(ArrayNode)x;
-                    for(Iterator<JsonNode> domains=arr.elements();
-                        domains.hasNext();) {
-                        x=domains.next();
+                    LOGGER.debug("Locking:{}",arr);
+                    for(Iterator<JsonNode> itr=arr.elements();
+                        itr.hasNext();) {
+                        x=itr.next();
                         if(x instanceof ObjectNode) {
                             ObjectNode d=(ObjectNode)x;
                             JsonNode domainName=d.get("domain");
-                            if(domainName!=null&&domainName.asText().equals(domain))
-                                return d;
+                            if(domainName!=null&&!map.containsKey(domainName.asText()))
+                                map.put(domainName.asText(),d);
                         }
                     }
                 }
             }
         }
-        return null;
+        return map;
     }
 }
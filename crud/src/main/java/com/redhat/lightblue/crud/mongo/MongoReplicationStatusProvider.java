@@ -0,0 +1,118 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.mongodb.CommandResult;
+import com.mongodb.DB;
+import com.mongodb.DBObject;
+
+/**
+ * Computes the replication lag using replSetGetStatus. The lag is the
+ * difference between the optime of the primary and the optime of the
+ * slowest healthy secondary. The status is read at most once in
+ * refreshIntervalMsec. If the server is not a replica set member, the
+ * lag is unknown.
+ */
+public class MongoReplicationStatusProvider implements ReplicationStatusProvider {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MongoReplicationStatusProvider.class);
+
+    public static final long DEFAULT_REFRESH_INTERVAL_MSEC = 1000;
+
+    private static final int STATE_PRIMARY = 1;
+    private static final int STATE_SECONDARY = 2;
+
+    private final DB adminDB;
+    private final long refreshIntervalMsec;
+
+    private long lastRefresh;
+    private long lagMsec = -1;
+    private boolean replicaSet = true;
+
+    public MongoReplicationStatusProvider(DB db) {
+        this(db, DEFAULT_REFRESH_INTERVAL_MSEC);
+    }
+
+    public MongoReplicationStatusProvider(DB db, long refreshIntervalMsec) {
+        this.adminDB = db.getSisterDB("admin");
+        this.refreshIntervalMsec = refreshIntervalMsec;
+    }
+
+    @Override
+    public synchronized long getReplicationLagMsec() {
+        long now = System.currentTimeMillis();
+        if (replicaSet && now - lastRefresh >= refreshIntervalMsec) {
+            lastRefresh = now;
+            try {
+                CommandResult result = adminDB.command("replSetGetStatus");
+                if (result.ok()) {
+                    lagMsec = computeLag(result);
+                    LOGGER.debug("Replication lag: {}", lagMsec);
+                } else {
+                    LOGGER.debug("replSetGetStatus failed, replication lag is not known: {}", result.getErrorMessage());
+                    replicaSet = false;
+                    lagMsec = -1;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot get replication status: {}", e.toString());
+                lagMsec = -1;
+            }
+        }
+        return lagMsec;
+    }
+
+    /**
+     * Returns the lag of the slowest secondary using the members
+     * array of a replSetGetStatus result
+     */
+    public static long computeLag(DBObject status) {
+        List<DBObject> members = (List<DBObject>) status.get("members");
+        if (members == null) {
+            return -1;
+        }
+        Date primary = null;
+        Date slowest = null;
+        for (DBObject member : members) {
+            Number state = (Number) member.get("state");
+            Date optime = (Date) member.get("optimeDate");
+            if (state != null && optime != null) {
+                if (state.intValue() == STATE_PRIMARY) {
+                    primary = optime;
+                } else if (state.intValue() == STATE_SECONDARY) {
+                    if (slowest == null || optime.before(slowest)) {
+                        slowest = optime;
+                    }
+                }
+            }
+        }
+        if (primary == null) {
+            return -1;
+        } else if (slowest == null) {
+            return 0;
+        } else {
+            return Math.max(0, primary.getTime() - slowest.getTime());
+        }
+    }
+}
@@ -18,19 +18,43 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mongodb.WriteConcern;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCollection;
 import com.mongodb.DBObject;
+import com.mongodb.MongoException;
 
 /**
  * Sequence generation using a MongoDB collection. 
  *
  * Each sequence is a document uniquely identified by the sequence name. The document contains
  * initial value for the sequence, the increment, and the value.
+ *
+ * Values are reserved from the database in blocks of
+ * <code>blockSize</code> values, with a single update that advances
+ * the sequence value by <code>increment*blockSize</code>. The values
+ * of a block are handed out from memory, and a new block is reserved
+ * when the current block is exhausted. Values reserved but not used
+ * by a generator are lost, so with block sizes larger than one,
+ * sequences may have gaps, and values handed out by different
+ * generators are not ordered.
+ *
+ * The increment of a sequence is read once, when the sequence is
+ * first used by the generator. After that, reserving a block is a
+ * single round trip.
+ *
+ * Optionally, the next block is reserved in the background when the
+ * current block is running low, so callers don't wait for the
+ * database in steady state, and the block size grows when values are
+ * used in bursts.
  */
 public class MongoSequenceGenerator {
 
@@ -39,12 +63,116 @@ public class MongoSequenceGenerator {
     public static final String INC="increment";
     public static final String VALUE="value";
 
+    public static final int DEFAULT_BLOCK_SIZE=1;
+    public static final double DEFAULT_LOW_WATER_MARK=0.25;
+    public static final long DEFAULT_BURST_INTERVAL_MSEC=1000l;
+
     private static final Logger LOGGER=LoggerFactory.getLogger(MongoSequenceGenerator.class);
     
     private DBCollection coll;
+    private final int blockSize;
+    private volatile boolean indexInitialized=false;
+
+    private Executor prefetchExecutor;
+    private double lowWaterMark=DEFAULT_LOW_WATER_MARK;
+    private int maxBlockSize;
+    private long burstIntervalMsec=DEFAULT_BURST_INTERVAL_MSEC;
+
+    /**
+     * A block of reserved values: start, start+inc, ...,
+     * start+(size-1)*inc. Values are handed out by incrementing the
+     * index, without locking.
+     */
+    private static final class Block {
+        private final long start;
+        private final long inc;
+        private final int size;
+        private final AtomicInteger index=new AtomicInteger(0);
+        private final AtomicBoolean prefetchRequested=new AtomicBoolean(false);
+
+        public Block(long start,long inc,int size) {
+            this.start=start;
+            this.inc=inc;
+            this.size=size;
+        }
+    }
+
+    /**
+     * The current block of a sequence, and the next block if it is
+     * prefetched. A new block is reserved while holding the lock of
+     * this object.
+     */
+    private static final class Sequence {
+        private final String name;
+        private final long init;
+        private final long inc;
+        private volatile Block block;
+        private Block next;
+        private Long increment;
+        private int blockSize;
+        private long lastReservation;
+
+        public Sequence(String name,long init,long inc,int blockSize) {
+            this.name=name;
+            this.init=init;
+            this.inc=inc;
+            this.blockSize=blockSize;
+        }
+    }
+
+    private final ConcurrentHashMap<String,Sequence> sequences=new ConcurrentHashMap<>();
 
     public MongoSequenceGenerator(DBCollection coll) {
+        this(coll,DEFAULT_BLOCK_SIZE);
+    }
+
+    public MongoSequenceGenerator(DBCollection coll,int blockSize) {
+        if(blockSize<1)
+            throw new IllegalArgumentException("blockSize="+blockSize);
         this.coll=coll;
+        this.blockSize=blockSize;
+        this.maxBlockSize=blockSize;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Sets the executor used to reserve the next block in the
+     * background when the remaining values of the current block drop
+     * below the low water mark. If null, blocks are reserved when
+     * they are needed.
+     */
+    public void setPrefetchExecutor(Executor executor) {
+        prefetchExecutor=executor;
+    }
+
+    /**
+     * Sets the fraction of the block remaining when the next block
+     * is prefetched. Default is 0.25
+     */
+    public void setLowWaterMark(double d) {
+        if(d<=0||d>=1)
+            throw new IllegalArgumentException("lowWaterMark="+d);
+        lowWaterMark=d;
+    }
+
+    /**
+     * Sets the maximum block size. When blocks are used up faster
+     * than the burst interval, the block size of the sequence is
+     * doubled up to this value. When they last longer than four burst
+     * intervals, it is halved down to the initial block size. By
+     * default, block size is fixed.
+     */
+    public void setMaxBlockSize(int n) {
+        if(n<blockSize)
+            throw new IllegalArgumentException("maxBlockSize="+n);
+        maxBlockSize=n;
+    }
+
+    public void setBurstIntervalMsec(long l) {
+        burstIntervalMsec=l;
     }
 
     private void initIndex() {
@@ -72,39 +200,181 @@ public class MongoSequenceGenerator {
      */
     public long getNextSequenceValue(String name,long init,long inc) {
         LOGGER.debug("getNextSequenceValue({})",name);
-        // Read the sequence document
+        Sequence seq=getSequence(name,init,inc);
+        while(true) {
+            Block block=seq.block;
+            if(block!=null) {
+                int i=block.index.getAndIncrement();
+                if(i<block.size) {
+                    long l=block.start+i*block.inc;
+                    LOGGER.debug("{} -> {}",name,l);
+                    if(block.size-i-1<=block.size*lowWaterMark)
+                        prefetch(seq,block);
+                    return l;
+                }
+            }
+            synchronized(seq) {
+                // Someone else may have reserved a new block while we waited
+                if(seq.block==block) {
+                    if(seq.next!=null) {
+                        seq.block=seq.next;
+                        seq.next=null;
+                    } else {
+                        seq.block=reserveNextBlock(seq);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves the next block in the background, once per block
+     */
+    private void prefetch(final Sequence seq,final Block block) {
+        Executor executor=prefetchExecutor;
+        if(executor!=null&&block.prefetchRequested.compareAndSet(false,true)) {
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            synchronized(seq) {
+                                if(seq.block==block&&seq.next==null) {
+                                    seq.next=reserveNextBlock(seq);
+                                }
+                            }
+                        } catch (RuntimeException e) {
+                            LOGGER.warn("Cannot prefetch values for {}: {}",seq.name,e);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                LOGGER.debug("Prefetch rejected for {}",seq.name);
+            }
+        }
+    }
+
+    /**
+     * Reserves the next block of the sequence, adjusting the block
+     * size to the rate the values are used. Called while holding the
+     * sequence lock.
+     */
+    private Block reserveNextBlock(Sequence seq) {
+        long now=System.currentTimeMillis();
+        if(seq.lastReservation>0) {
+            long elapsed=now-seq.lastReservation;
+            if(elapsed<burstIntervalMsec&&seq.blockSize<maxBlockSize) {
+                seq.blockSize=Math.min(seq.blockSize*2,maxBlockSize);
+                LOGGER.debug("{}: block size increased to {}",seq.name,seq.blockSize);
+            } else if(elapsed>4*burstIntervalMsec&&seq.blockSize>blockSize) {
+                seq.blockSize=Math.max(seq.blockSize/2,blockSize);
+                LOGGER.debug("{}: block size decreased to {}",seq.name,seq.blockSize);
+            }
+        }
+        seq.lastReservation=now;
+        return reserveBlock(seq,seq.name,seq.init,seq.inc,seq.blockSize);
+    }
+
+    /**
+     * Returns n consecutive values of the sequence. If the values are
+     * not available in the current block, they are reserved with a
+     * single update. The remaining values of the current block are
+     * not used in that case.
+     *
+     * @param name The sequence name
+     * @param init The initial value of the sequence, used only if
+     * the sequence does not exist
+     * @param inc The increment, used only if the sequence does not
+     * exist
+     * @param n Number of values
+     *
+     * @return n values, each one increment apart from the previous one
+     */
+    public long[] getNextSequenceValues(String name,long init,long inc,int n) {
+        LOGGER.debug("getNextSequenceValues({},{})",name,n);
+        long[] values=new long[n];
+        if(n==0)
+            return values;
+        Sequence seq=getSequence(name,init,inc);
+        Block block=seq.block;
+        int start;
+        if(block!=null&&(start=block.index.getAndAdd(n))+n<=block.size) {
+            for(int i=0;i<n;i++)
+                values[i]=block.start+(start+i)*block.inc;
+        } else {
+            Block range;
+            synchronized(seq) {
+                range=reserveBlock(seq,name,init,inc,n);
+            }
+            for(int i=0;i<n;i++)
+                values[i]=range.start+i*range.inc;
+        }
+        return values;
+    }
+
+    private Sequence getSequence(String name,long init,long inc) {
+        Sequence seq=sequences.get(name);
+        if(seq==null) {
+            seq=new Sequence(name,init,inc,blockSize);
+            Sequence x=sequences.putIfAbsent(name,seq);
+            if(x!=null)
+                seq=x;
+        }
+        return seq;
+    }
+
+    /**
+     * Reserves the next block of values from the database. Once the
+     * increment of the sequence is known, this is a single
+     * findAndModify. On first use, the sequence is created, or its
+     * increment is read, with an upsert.
+     */
+    private Block reserveBlock(Sequence seq,String name,long init,long inc,int size) {
         BasicDBObject q=new BasicDBObject(NAME,name);
-        DBObject doc=coll.findOne(q);
-        if(doc==null) {
-            // Sequence document does not exist. Insert a new document using the init and inc
-            LOGGER.debug("inserting sequence record name={}, init={}, inc={}",name,init,inc);
-            if(inc==0)
-                inc=1;
-            // Here, we also make sure we have the indexes setup properly
-            initIndex();
+        for(int attempt=0;attempt<3;attempt++) {
+            if(seq.increment==null) {
+                // Here, we also make sure we have the indexes setup properly
+                if(!indexInitialized) {
+                    initIndex();
+                    indexInitialized=true;
+                }
+                if(inc==0)
+                    inc=1;
+                // Insert the sequence if it doesn't exist, reserving the first block
+                BasicDBObject u=new BasicDBObject("$setOnInsert",new BasicDBObject(INIT,init).
+                                                  append(INC,inc).
+                                                  append(VALUE,init+inc*size));
+                LOGGER.debug("upsert sequence record name={}, init={}, inc={}",name,init,inc);
+                DBObject doc;
+                try {
+                    // Returns null if the document is inserted
+                    doc=coll.findAndModify(q,null,null,false,u,false,true);
+                } catch (MongoException e) {
+                    // Someone else might have inserted already, try again
+                    LOGGER.debug("Upsert failed with {}, retrying",e);
+                    continue;
+                }
+                if(doc==null) {
+                    seq.increment=inc;
+                    LOGGER.debug("{}: created, reserved {} values starting from {}",name,size,init);
+                    return new Block(init,inc,size);
+                }
+                LOGGER.debug("Sequence doc={}",doc);
+                seq.increment=((Number)doc.get(INC)).longValue();
+            }
+            long increment=seq.increment;
             BasicDBObject u=new BasicDBObject().
-                append(NAME,name).
-                append(INIT,init).
-                append(INC,inc).
-                append(VALUE,init);
-            try {
-                coll.insert(u,WriteConcern.SAFE);
-            } catch (Exception e) {
-                // Someone else might have inserted already, try to re-read
-                LOGGER.debug("Insertion failed with {}, trying to read",e);
+                append("$inc",new BasicDBObject(VALUE,increment*size));
+            // This call returns the unmodified document
+            DBObject doc=coll.findAndModify(q,u);
+            if(doc!=null) {
+                long l=((Number)doc.get(VALUE)).longValue();
+                LOGGER.debug("{}: reserved {} values starting from {}",name,size,l);
+                return new Block(l,increment,size);
             }
-            doc=coll.findOne(q);
-            if(doc==null)
-                throw new RuntimeException("Cannot generate value for "+name);
+            // Sequence is removed, recreate it
+            seq.increment=null;
         }
-        LOGGER.debug("Sequence doc={}",doc);
-        Long increment=(Long)doc.get(INC);
-        BasicDBObject u=new BasicDBObject().
-            append("$inc",new BasicDBObject(VALUE,increment));
-        // This call returns the unmodified document
-        doc=coll.findAndModify(q,u);
-        Long l=(Long)doc.get(VALUE);
-        LOGGER.debug("{} -> {}",name,l);
-        return l;
+        throw new RuntimeException("Cannot generate value for "+name);
     }
 }
@@ -19,6 +19,10 @@
 package com.redhat.lightblue.crud.mongo;
 
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -58,7 +62,21 @@ import com.redhat.lightblue.extensions.valuegenerator.ValueGeneratorSupport;
  * <li>increment: Optional parameter, if ommitted, 1 is assumed. Gives
  * the increment value of the sequence.<li>
  *
+ * <li>blockSize: Optional parameter, if ommitted, 1 is assumed. The
+ * number of values reserved from the database at once.</li>
+ *
+ * <li>maxBlockSize: Optional parameter, if ommitted, block size is
+ * fixed. If values are used in bursts, the block size grows up to
+ * this value.</li>
+ *
  * </ul>
+ *
+ * If the block size is larger than one, the next block is reserved
+ * in the background before the current one runs out.
+ *
+ * Generators are cached per datasource, collection, and block size,
+ * and each generator caches the sequences it used, so the steady
+ * state cost of a value is at most one round trip.
  */
 public class MongoSequenceSupport implements ValueGeneratorSupport {
 
@@ -66,12 +84,20 @@ public class MongoSequenceSupport implements ValueGeneratorSupport {
 
     private final MongoCRUDController controller;
 
+    private final ConcurrentHashMap<String,MongoSequenceGenerator> generators=new ConcurrentHashMap<>();
+
+    private ExecutorService prefetchExecutor;
+
     public static final String DEFAULT_COLLECTION_NAME="sequences";
 
     public static final String PROP_NAME="name";
     public static final String PROP_COLLECTION="collection";
     public static final String PROP_INITIAL_VALUE="initialValue";
     public static final String PROP_INCREMENT="increment";
+    public static final String PROP_BLOCK_SIZE="blockSize";
+    public static final String PROP_MAX_BLOCK_SIZE="maxBlockSize";
+
+    private static final int PREFETCH_THREADS=2;
 
     private static final ValueGenerator.ValueGeneratorType[] TYPES={ValueGenerator.ValueGeneratorType.IntSequence};
     
@@ -86,29 +112,106 @@ public class MongoSequenceSupport implements ValueGeneratorSupport {
 
     @Override
     public Object generateValue(EntityMetadata md,ValueGenerator generator) {
-        Properties p=generator.getProperties();
-        // We expect to see at least a name for the generator
-        String name=p.getProperty(PROP_NAME);
-        if(name==null)
-            throw Error.get(MongoCrudConstants.ERR_NO_SEQUENCE_NAME);
-        String collection=p.getProperty(PROP_COLLECTION);
-        if(collection==null)
-            collection=DEFAULT_COLLECTION_NAME;
-        String initialValueStr=p.getProperty(PROP_INITIAL_VALUE);
-        long initialValue;
-        if(initialValueStr==null)
-            initialValue=1;
-        else
-            initialValue=Long.valueOf(initialValueStr).longValue();
-        String incrementStr=p.getProperty(PROP_INCREMENT);
-        long increment;
-        if(incrementStr==null)
-            increment=1;
-        else
-            increment=Long.valueOf(incrementStr).longValue();
-        DB db=controller.getDbResolver().get((MongoDataStore)md.getDataStore());
-        DBCollection coll=db.getCollection(collection);
-        MongoSequenceGenerator gen=new MongoSequenceGenerator(coll);
-        return gen.getNextSequenceValue(name,initialValue,increment);
+        SequenceDef def=new SequenceDef(generator);
+        MongoSequenceGenerator gen=getGenerator((MongoDataStore)md.getDataStore(),def);
+        return gen.getNextSequenceValue(def.name,def.initialValue,def.increment);
+    }
+
+    /**
+     * Generates n values for the given generator at once, reserving
+     * them from the database with a single update if necessary. This
+     * is meant for requests that need the same value generator for
+     * many documents. 
+     */
+    public Object[] generateValues(EntityMetadata md,ValueGenerator generator,int n) {
+        SequenceDef def=new SequenceDef(generator);
+        MongoSequenceGenerator gen=getGenerator((MongoDataStore)md.getDataStore(),def);
+        long[] values=gen.getNextSequenceValues(def.name,def.initialValue,def.increment,n);
+        Object[] ret=new Object[n];
+        for(int i=0;i<n;i++)
+            ret[i]=values[i];
+        return ret;
+    }
+
+    /**
+     * Sequence parameters parsed from value generator properties
+     */
+    private static final class SequenceDef {
+        private final String name;
+        private final String collection;
+        private final long initialValue;
+        private final long increment;
+        private final int blockSize;
+        private final int maxBlockSize;
+
+        public SequenceDef(ValueGenerator generator) {
+            Properties p=generator.getProperties();
+            // We expect to see at least a name for the generator
+            name=p.getProperty(PROP_NAME);
+            if(name==null)
+                throw Error.get(MongoCrudConstants.ERR_NO_SEQUENCE_NAME);
+            String c=p.getProperty(PROP_COLLECTION);
+            if(c==null)
+                collection=DEFAULT_COLLECTION_NAME;
+            else
+                collection=c;
+            String initialValueStr=p.getProperty(PROP_INITIAL_VALUE);
+            if(initialValueStr==null)
+                initialValue=1;
+            else
+                initialValue=Long.valueOf(initialValueStr).longValue();
+            String incrementStr=p.getProperty(PROP_INCREMENT);
+            if(incrementStr==null)
+                increment=1;
+            else
+                increment=Long.valueOf(incrementStr).longValue();
+            String blockSizeStr=p.getProperty(PROP_BLOCK_SIZE);
+            if(blockSizeStr==null)
+                blockSize=MongoSequenceGenerator.DEFAULT_BLOCK_SIZE;
+            else
+                blockSize=Integer.valueOf(blockSizeStr).intValue();
+            String maxBlockSizeStr=p.getProperty(PROP_MAX_BLOCK_SIZE);
+            if(maxBlockSizeStr==null)
+                maxBlockSize=blockSize;
+            else
+                maxBlockSize=Math.max(blockSize,Integer.valueOf(maxBlockSizeStr).intValue());
+        }
+    }
+
+    private MongoSequenceGenerator getGenerator(MongoDataStore store,SequenceDef def) {
+        String key=store.getDatasourceName()+":"+store.getDatabaseName()+":"+def.collection+":"+def.blockSize+":"+def.maxBlockSize;
+        MongoSequenceGenerator gen=generators.get(key);
+        if(gen==null) {
+            DB db=controller.getDbResolver().get(store);
+            DBCollection coll=db.getCollection(def.collection);
+            gen=new MongoSequenceGenerator(coll,def.blockSize);
+            if(def.blockSize>1) {
+                gen.setMaxBlockSize(def.maxBlockSize);
+                gen.setPrefetchExecutor(getPrefetchExecutor());
+            }
+            MongoSequenceGenerator x=generators.putIfAbsent(key,gen);
+            if(x!=null)
+                gen=x;
+            else
+                LOGGER.debug("Created sequence generator for {}",key);
+        }
+        return gen;
+    }
+
+    private synchronized ExecutorService getPrefetchExecutor() {
+        if(prefetchExecutor==null) {
+            prefetchExecutor=Executors.newFixedThreadPool(PREFETCH_THREADS,new ThreadFactory() {
+                private final ThreadFactory defaultFactory=Executors.defaultThreadFactory();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t=defaultFactory.newThread(r);
+                    t.setName("mongo-sequence-"+t.getName());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return prefetchExecutor;
     }
 }
@@ -36,6 +36,7 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.JsonNodeFactory;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.mongodb.BasicDBList;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
 import com.redhat.lightblue.crud.MetadataResolver;
@@ -50,6 +51,7 @@ import com.redhat.lightblue.metadata.ReferenceField;
 import com.redhat.lightblue.metadata.SimpleArrayElement;
 import com.redhat.lightblue.metadata.SimpleField;
 import com.redhat.lightblue.metadata.Type;
+import com.redhat.lightblue.query.ArrayAddExpression;
 import com.redhat.lightblue.query.ArrayContainsExpression;
 import com.redhat.lightblue.query.ArrayMatchExpression;
 import com.redhat.lightblue.query.ArrayUpdateExpression;
@@ -350,6 +352,7 @@ public class Translator {
         try {
             BasicDBObject ret = new BasicDBObject();
             translateUpdate(md.getFieldTreeRoot(), expr, ret);
+            checkConflictingPaths(expr, ret);
             return ret;
         } catch (Error | CannotTranslateException e) {
             // rethrow lightblue error
@@ -416,12 +419,14 @@ public class Translator {
     }
 
     /**
-     * Translate update expression list and primitive updates. Anything else
-     * causes an exception.
+     * Translate update expression list, primitive updates, and array
+     * append/insert. Anything else causes an exception.
      */
     private void translateUpdate(FieldTreeNode root, UpdateExpression expr, BasicDBObject dest)
             throws CannotTranslateException {
-        if (expr instanceof ArrayUpdateExpression) {
+        if (expr instanceof ArrayAddExpression) {
+            translateArrayAdd(root, (ArrayAddExpression) expr, dest);
+        } else if (expr instanceof ArrayUpdateExpression) {
             throw new CannotTranslateException(expr);
         } else if (expr instanceof PrimitiveUpdateExpression) {
             translatePrimitiveUpdate(root, (PrimitiveUpdateExpression) expr, dest);
@@ -512,6 +517,115 @@ public class Translator {
         }
     }
 
+    /**
+     * Translates $append to $push with $each, and $insert to $push
+     * with $each and $position. Only values can be added to arrays of
+     * simple elements, and the array itself cannot be nested in
+     * another array. The array size field is incremented by the
+     * number of added elements.
+     */
+    private void translateArrayAdd(FieldTreeNode root,
+                                   ArrayAddExpression expr,
+                                   BasicDBObject dest)
+            throws CannotTranslateException {
+        Path arrayField;
+        Integer position;
+        switch (expr.getOp()) {
+            case _append:
+                arrayField = expr.getField();
+                position = null;
+                break;
+            case _insert:
+                Path field = expr.getField();
+                int n = field.numSegments();
+                if (n < 2 || !field.isIndex(n - 1)) {
+                    throw new CannotTranslateException(expr);
+                }
+                position = Integer.valueOf(field.head(n - 1));
+                if (position < 0) {
+                    throw new CannotTranslateException(expr);
+                }
+                arrayField = field.prefix(-1);
+                break;
+            default:
+                throw new CannotTranslateException(expr);
+        }
+        FieldTreeNode node = root.resolve(arrayField);
+        if (!(node instanceof ArrayField)
+                || !(((ArrayField) node).getElement() instanceof SimpleArrayElement)
+                || (arrayField.numSegments() > 1 && hasArray(root, arrayField.prefix(-1)))) {
+            throw new CannotTranslateException(expr);
+        }
+        ArrayElement element = ((ArrayField) node).getElement();
+        BasicDBList values = new BasicDBList();
+        for (RValueExpression rvalue : expr.getValues()) {
+            if (rvalue.getType() == RValueExpression.RValueType._value) {
+                values.add(filterBigNumbers(element.getType().cast(rvalue.getValue().getValue())));
+            } else {
+                throw new CannotTranslateException(expr);
+            }
+        }
+
+        BasicDBObject push = (BasicDBObject) dest.get("$push");
+        if (push == null) {
+            push = new BasicDBObject();
+            dest.put("$push", push);
+        }
+        String mongoField = translatePath(arrayField);
+        if (push.containsField(mongoField)) {
+            // Mongo allows only one $push per field
+            throw new CannotTranslateException(expr);
+        }
+        BasicDBObject each = new BasicDBObject("$each", values);
+        if (position != null) {
+            each.append("$position", position);
+        }
+        push.put(mongoField, each);
+
+        Path sizeField = getArraySizeField(root, arrayField);
+        if (sizeField != null) {
+            BasicDBObject inc = (BasicDBObject) dest.get("$inc");
+            if (inc == null) {
+                inc = new BasicDBObject();
+                dest.put("$inc", inc);
+            }
+            inc.put(translatePath(sizeField), values.size());
+        }
+    }
+
+    /**
+     * Returns the path of the field keeping the size of the given
+     * array, or null if there is no such field
+     */
+    private Path getArraySizeField(FieldTreeNode root, Path arrayField) {
+        Path sizeField = new Path(arrayField.toString() + "#");
+        try {
+            return root.resolve(sizeField) instanceof SimpleField ? sizeField : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Mongo rejects an update if a field and its ancestor or
+     * descendant are modified by the same update expression, or if
+     * the same field is modified by different operators.
+     */
+    private static void checkConflictingPaths(UpdateExpression expr, DBObject mongoUpdate)
+            throws CannotTranslateException {
+        List<String> fields = new ArrayList<>();
+        for (String op : mongoUpdate.keySet()) {
+            for (String field : ((DBObject) mongoUpdate.get(op)).keySet()) {
+                for (String x : fields) {
+                    if (x.equals(field) || x.startsWith(field + ".") || field.startsWith(x + ".")) {
+                        throw new CannotTranslateException(expr);
+                    }
+                }
+                fields.add(field);
+            }
+        }
+    }
+
     /**
      * Returns true if the field is an array, or points to a field within an
      * array
@@ -0,0 +1,113 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdaptiveWriteThrottleTest {
+
+    /**
+     * Throttle with a fake clock, sleeping advances the clock
+     */
+    private static class TestThrottle extends AdaptiveWriteThrottle {
+        long now = 1000;
+        long slept = 0;
+
+        public TestThrottle(int min, int max, long latency, long lag, ReplicationStatusProvider p) {
+            super(min, max, latency, lag, p);
+        }
+
+        @Override
+        protected long currentTimeMillis() {
+            return now;
+        }
+
+        @Override
+        protected void sleep(long msec) {
+            slept += msec;
+            now += msec;
+        }
+    }
+
+    @Test
+    public void rateTest() {
+        TestThrottle t = new TestThrottle(10, 100, 0, 0, null);
+        // 100 docs/sec: 10 docs take 100 msec
+        t.acquire(10);
+        Assert.assertEquals(0, t.slept);
+        t.acquire(10);
+        Assert.assertEquals(100, t.slept);
+        t.acquire(10);
+        Assert.assertEquals(200, t.slept);
+    }
+
+    @Test
+    public void lagTest() {
+        StubReplicationStatusProvider status = new StubReplicationStatusProvider(0);
+        TestThrottle t = new TestThrottle(10, 100, 0, 1000, status);
+        Assert.assertEquals(100, t.getDocsPerSec(), 0.1);
+
+        status.setReplicationLagMsec(5000);
+        t.writeCompleted(10, 1);
+        Assert.assertEquals(50, t.getDocsPerSec(), 0.1);
+        for (int i = 0; i < 10; i++) {
+            t.writeCompleted(10, 1);
+        }
+        Assert.assertEquals(10, t.getDocsPerSec(), 0.1);
+
+        status.setReplicationLagMsec(100);
+        t.writeCompleted(10, 1);
+        Assert.assertEquals(20, t.getDocsPerSec(), 0.1);
+        for (int i = 0; i < 20; i++) {
+            t.writeCompleted(10, 1);
+        }
+        Assert.assertEquals(100, t.getDocsPerSec(), 0.1);
+
+        // Unknown lag is ignored
+        status.setReplicationLagMsec(-1);
+        t.writeCompleted(10, 1);
+        Assert.assertEquals(100, t.getDocsPerSec(), 0.1);
+    }
+
+    @Test
+    public void latencyTest() {
+        TestThrottle t = new TestThrottle(10, 100, 50, 0, null);
+        t.writeCompleted(10, 200);
+        Assert.assertEquals(50, t.getDocsPerSec(), 0.1);
+        t.writeCompleted(10, 20);
+        Assert.assertEquals(60, t.getDocsPerSec(), 0.1);
+    }
+
+    @Test
+    public void computeLagTest() {
+        DBObject status = new BasicDBObject("members", Arrays.asList(
+                new BasicDBObject("state", 1).append("optimeDate", new Date(10000)),
+                new BasicDBObject("state", 2).append("optimeDate", new Date(9000)),
+                new BasicDBObject("state", 2).append("optimeDate", new Date(7500)),
+                // arbiter
+                new BasicDBObject("state", 7)));
+        Assert.assertEquals(2500, MongoReplicationStatusProvider.computeLag(status));
+    }
+}
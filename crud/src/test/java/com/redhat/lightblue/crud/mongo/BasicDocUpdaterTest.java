@@ -0,0 +1,48 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.CRUDUpdateResponse;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BasicDocUpdaterTest extends AbstractMongoCrudTest {
+    @Test
+    public void update() {
+        for (int i = 0; i < 10; i++) {
+            coll.insert(new BasicDBObject("_id", "updateTest" + i).append("x", i));
+        }
+
+        BasicDocUpdater updater = new BasicDocUpdater(new BasicDBObject("$set", new BasicDBObject("y", "updated")));
+        CRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+        DBObject mongoQuery = new BasicDBObject("x", new BasicDBObject("$gte", 5));
+        CRUDUpdateResponse response = new CRUDUpdateResponse();
+        updater.update(ctx, coll, null, response, mongoQuery);
+
+        Assert.assertEquals(5, response.getNumUpdated());
+        Assert.assertEquals(0, response.getNumFailed());
+        Assert.assertEquals(5, coll.find(new BasicDBObject("y", "updated")).count());
+        // Documents are not retrieved
+        Assert.assertTrue(ctx.getDocuments() == null || ctx.getDocuments().isEmpty());
+    }
+}
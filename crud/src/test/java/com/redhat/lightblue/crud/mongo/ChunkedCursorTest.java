@@ -0,0 +1,105 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.util.Error;
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ChunkedCursorTest extends AbstractMongoCrudTest {
+
+    private List<Object> readAll(ChunkedCursor cursor) {
+        List<Object> ids = new ArrayList<>();
+        try {
+            while (cursor.hasNext()) {
+                ids.add(cursor.next().get("_id"));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void chunkedTest() {
+        for (int i = 9; i >= 0; i--) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("x", i));
+        }
+        DBObject q = new BasicDBObject("x", new BasicDBObject("$gte", 3));
+        ChunkedCursor cursor = new ChunkedCursor(coll, q, null, 3, null);
+        List<Object> ids = readAll(cursor);
+        Assert.assertEquals(7, ids.size());
+        for (int i = 0; i < 7; i++) {
+            Assert.assertEquals("doc" + (i + 3), ids.get(i));
+        }
+        // 3+3+1
+        Assert.assertEquals(3, cursor.getNumChunks());
+        Assert.assertEquals("doc9", cursor.getLastId());
+    }
+
+    @Test
+    public void resumeTest() {
+        for (int i = 0; i < 10; i++) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("x", i));
+        }
+        List<Object> ids = readAll(new ChunkedCursor(coll, new BasicDBObject(), null, 4, "doc5"));
+        Assert.assertEquals(4, ids.size());
+        Assert.assertEquals("doc6", ids.get(0));
+    }
+
+    @Test
+    public void mixedIdTypesTest() {
+        for (int i = 0; i < 5; i++) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("x", i));
+        }
+        coll.insert(new BasicDBObject("_id", new ObjectId()).append("x", 5));
+        // {_id: {$gt: "doc..."}} would never match the ObjectId
+        try {
+            readAll(new ChunkedCursor(coll, new BasicDBObject(), null, 2, null));
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_MIXED_ID_TYPES, e.getErrorCode());
+        }
+        try {
+            readAll(new ChunkedCursor(coll, new BasicDBObject(), null, 2, "doc1"));
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_MIXED_ID_TYPES, e.getErrorCode());
+        }
+        // Fine if the query does not match the other types
+        DBObject q = new BasicDBObject("x", new BasicDBObject("$lt", 5));
+        Assert.assertEquals(5, readAll(new ChunkedCursor(coll, q, null, 2, null)).size());
+    }
+
+    @Test
+    public void singleCursorTest() {
+        for (int i = 0; i < 10; i++) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("x", i));
+        }
+        ChunkedCursor cursor = new ChunkedCursor(coll, new BasicDBObject(), null, 0, null);
+        Assert.assertEquals(10, readAll(cursor).size());
+        Assert.assertEquals(0, cursor.getNumChunks());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+public class DocumentDeltaTest {
+
+    private static DBObject doc() {
+        BasicDBList arr = new BasicDBList();
+        arr.addAll(Arrays.asList(1, 2, 3));
+        return new BasicDBObject("_id", "1").
+                append("a", "x").
+                append("b", new BasicDBObject("c", 1).append("d", 2)).
+                append("arr", arr);
+    }
+
+    @Test
+    public void noChangeTest() {
+        Assert.assertTrue(new DocumentDelta(doc(), doc()).isEmpty());
+    }
+
+    @Test
+    public void setUnsetTest() {
+        DBObject newDoc = doc();
+        newDoc.put("a", "y");
+        ((DBObject) newDoc.get("b")).put("c", 5);
+        ((DBObject) newDoc.get("b")).removeField("d");
+        newDoc.put("e", "new");
+        DocumentDelta delta = new DocumentDelta(doc(), newDoc);
+        Assert.assertFalse(delta.isEmpty());
+        Assert.assertFalse(delta.modifiesId());
+
+        DBObject u = delta.getUpdateExpression();
+        DBObject set = (DBObject) u.get("$set");
+        DBObject unset = (DBObject) u.get("$unset");
+        Assert.assertEquals(3, set.keySet().size());
+        Assert.assertEquals("y", set.get("a"));
+        Assert.assertEquals(5, set.get("b.c"));
+        Assert.assertEquals("new", set.get("e"));
+        Assert.assertEquals(1, unset.keySet().size());
+        Assert.assertTrue(unset.containsField("b.d"));
+
+        DBObject q = delta.getQuery("1");
+        Assert.assertEquals("1", q.get("_id"));
+        Assert.assertEquals("x", q.get("a"));
+        Assert.assertEquals(1, q.get("b.c"));
+        Assert.assertEquals(2, q.get("b.d"));
+        Assert.assertEquals(new BasicDBObject("$exists", false), q.get("e"));
+        Assert.assertNull(q.get("arr"));
+    }
+
+    @Test
+    public void arrayReplacedTest() {
+        DBObject newDoc = doc();
+        ((BasicDBList) newDoc.get("arr")).add(4);
+        DocumentDelta delta = new DocumentDelta(doc(), newDoc);
+        DBObject set = (DBObject) delta.getUpdateExpression().get("$set");
+        Assert.assertEquals(1, set.keySet().size());
+        Assert.assertEquals(4, ((BasicDBList) set.get("arr")).size());
+        Assert.assertNull(delta.getUpdateExpression().get("$unset"));
+    }
+
+    @Test
+    public void idModifiedTest() {
+        DBObject newDoc = doc();
+        newDoc.put("_id", "2");
+        Assert.assertTrue(new DocumentDelta(doc(), newDoc).modifiesId());
+    }
+}
@@ -25,6 +25,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.Ignore;
 
+import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 
 import com.redhat.lightblue.metadata.EntityMetadata;
@@ -66,4 +67,20 @@ public class GeneratorSupportTest extends AbstractMongoCrudTest  {
         value=ss.generateValue(md,vg);
         Assert.assertEquals("2",value.toString());
     }
+
+    @Test
+    public void testSeqBlock() throws Exception {
+        ValueGeneratorSupport ss=controller.getExtensionInstance(ValueGeneratorSupport.class);
+        Assert.assertSame(ss,controller.getExtensionInstance(ValueGeneratorSupport.class));
+        EntityMetadata md = getMd("./testMetadata.json");
+        ValueGenerator vg=new ValueGenerator(ValueGenerator.ValueGeneratorType.IntSequence);
+        vg.getProperties().setProperty("name","test");
+        vg.getProperties().setProperty("blockSize","10");
+        for(int i=1;i<=15;i++)
+            Assert.assertEquals(Integer.toString(i),ss.generateValue(md,vg).toString());
+        // Two blocks are reserved
+        Assert.assertEquals(21l,db.getCollection(MongoSequenceSupport.DEFAULT_COLLECTION_NAME).
+                            findOne(new BasicDBObject(MongoSequenceGenerator.NAME,"test")).
+                            get(MongoSequenceGenerator.VALUE));
+    }
 }
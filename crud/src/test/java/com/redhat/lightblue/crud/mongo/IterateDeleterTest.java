@@ -0,0 +1,86 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.crud.CRUDDeleteResponse;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.crud.CRUDOperationContext;
+import com.redhat.lightblue.crud.DocCtx;
+import com.redhat.lightblue.crud.Factory;
+import com.redhat.lightblue.interceptor.CRUDDocInterceptor;
+import com.redhat.lightblue.interceptor.InterceptPoint;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.JsonDoc;
+import com.redhat.lightblue.util.Path;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IterateDeleterTest extends AbstractMongoCrudTest {
+
+    @Test
+    public void concurrentDeleteTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        for (int i = 0; i < 5; i++) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("objectType", "test"));
+        }
+        // A separate factory, so the interceptor is not seen by other tests
+        Factory f = new Factory();
+        final List<String> postDelete = new ArrayList<>();
+        f.getInterceptors().registerInterceptor(1, new CRUDDocInterceptor() {
+            @Override
+            public void run(CRUDOperationContext ctx, DocCtx doc) {
+                postDelete.add(doc.get(new Path("_id")).asText());
+            }
+        }, InterceptPoint.POST_CRUD_DELETE_DOC);
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext("test", CRUDOperation.DELETE, f);
+        ctx.add(md);
+        // doc3 is removed by someone else after it is read
+        IterateDeleter deleter = new IterateDeleter(new Translator(ctx, nodeFactory) {
+            @Override
+            public JsonDoc toJson(DBObject object) {
+                if ("doc3".equals(object.get("_id"))) {
+                    coll.remove(new BasicDBObject("_id", "doc3"));
+                }
+                return super.toJson(object);
+            }
+        });
+        deleter.setBatchSize(1);
+        CRUDDeleteResponse response = new CRUDDeleteResponse();
+        deleter.delete(ctx, coll, new BasicDBObject(), response);
+
+        Assert.assertEquals(4, response.getNumDeleted());
+        Assert.assertEquals(0, coll.count());
+        // The post-delete interceptors are called for all documents,
+        // but only the removed ones are marked as deleted
+        Assert.assertEquals(5, postDelete.size());
+        Assert.assertEquals(5, ctx.getDocuments().size());
+        for (DocCtx doc : ctx.getDocuments()) {
+            if ("doc3".equals(doc.get(new Path("_id")).asText())) {
+                Assert.assertNull(doc.getCRUDOperationPerformed());
+            } else {
+                Assert.assertEquals(CRUDOperation.DELETE, doc.getCRUDOperationPerformed());
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.Date;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.redhat.lightblue.crud.CRUDDeleteResponse;
+import com.redhat.lightblue.crud.CRUDOperation;
+import com.redhat.lightblue.metadata.EntityMetadata;
+import com.redhat.lightblue.util.Error;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JobCheckpointTest extends AbstractMongoCrudTest {
+
+    private static final String JOBS = "jobs";
+
+    @After
+    public void dropJobs() {
+        db.getCollection(JOBS).drop();
+    }
+
+    @Test
+    public void resumeTest() {
+        DBCollection jobs = db.getCollection(JOBS);
+        JobCheckpoint cp = JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:1}}", null);
+        Assert.assertNull(cp.getStartAfterId());
+        cp.checkpoint("doc3", 4, 1);
+        cp.checkpoint("doc7", 4, 0);
+
+        // The same operation is not resumed without the job id
+        JobCheckpoint other = JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:1}}", null);
+        Assert.assertNotEquals(cp.getJobId(), other.getJobId());
+        Assert.assertNull(other.getStartAfterId());
+
+        // The job cannot be resumed while its lease is valid
+        try {
+            JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:1}}", cp.getJobId());
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CANNOT_RESUME_JOB, e.getErrorCode());
+        }
+
+        // The run fails, its lease expires
+        jobs.update(new BasicDBObject("_id", cp.getJobId()),
+                new BasicDBObject("$set", new BasicDBObject(JobCheckpoint.LEASE_EXPIRES, new Date(0))));
+        // A different operation cannot resume the job
+        try {
+            JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:2}}", cp.getJobId());
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CANNOT_RESUME_JOB, e.getErrorCode());
+        }
+        JobCheckpoint resumed = JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:1}}", cp.getJobId());
+        Assert.assertEquals(cp.getJobId(), resumed.getJobId());
+        Assert.assertEquals("doc7", resumed.getStartAfterId());
+        Assert.assertEquals(8, resumed.getNumProcessedBefore());
+
+        // The previous run no longer owns the job, it must stop
+        try {
+            cp.checkpoint("doc9", 2, 0);
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_JOB_NOT_OWNED, e.getErrorCode());
+        }
+        DBObject job = jobs.findOne(new BasicDBObject("_id", cp.getJobId()));
+        Assert.assertEquals("doc7", job.get(JobCheckpoint.LASTID));
+
+        resumed.completed();
+        job = jobs.findOne(new BasicDBObject("_id", cp.getJobId()));
+        Assert.assertEquals(JobCheckpoint.STATUS_COMPLETED, job.get(JobCheckpoint.STATUS));
+        Assert.assertEquals(1L, ((Number) job.get(JobCheckpoint.FAILED)).longValue());
+
+        // Completed job cannot be resumed
+        jobs.update(new BasicDBObject("_id", cp.getJobId()),
+                new BasicDBObject("$set", new BasicDBObject(JobCheckpoint.LEASE_EXPIRES, new Date(0))));
+        try {
+            JobCheckpoint.open(jobs, "update", "test", "{x:1}", "{$set:{y:1}}", cp.getJobId());
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_CANNOT_RESUME_JOB, e.getErrorCode());
+        }
+    }
+
+    @Test
+    public void resumeAfterFailureTest() {
+        DBCollection jobs = db.getCollection(JOBS);
+        JobCheckpoint cp = JobCheckpoint.open(jobs, "delete", "test", "{x:1}", null, null);
+        cp.checkpoint("doc3", 4, 0);
+        cp.failed();
+        DBObject job = jobs.findOne(new BasicDBObject("_id", cp.getJobId()));
+        Assert.assertEquals(JobCheckpoint.STATUS_FAILED, job.get(JobCheckpoint.STATUS));
+
+        // The lease is released, so the job is resumed right away
+        JobCheckpoint resumed = JobCheckpoint.open(jobs, "delete", "test", "{x:1}", null, cp.getJobId());
+        Assert.assertEquals("doc3", resumed.getStartAfterId());
+        Assert.assertEquals(4, resumed.getNumProcessedBefore());
+        job = jobs.findOne(new BasicDBObject("_id", cp.getJobId()));
+        Assert.assertEquals(JobCheckpoint.STATUS_RUNNING, job.get(JobCheckpoint.STATUS));
+    }
+
+    @Test
+    public void failedDeleteReleasesJobTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        for (int i = 0; i < 10; i++) {
+            coll.insert(new BasicDBObject("_id", "doc" + i).append("objectType", "test"));
+        }
+        DBCollection jobs = db.getCollection(JOBS);
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.DELETE);
+        ctx.add(md);
+        IterateDeleter deleter = new IterateDeleter(new Translator(ctx, nodeFactory));
+        deleter.setChunkSize(2);
+        deleter.setBatchSize(2);
+        JobCheckpoint cp = JobCheckpoint.open(jobs, "delete", "test", "{}", null, null);
+        deleter.setCheckpoint(cp);
+        // Another run takes the job over: this run stops after the first batch
+        jobs.update(new BasicDBObject("_id", cp.getJobId()),
+                new BasicDBObject("$set", new BasicDBObject(JobCheckpoint.OWNER, "other")));
+        try {
+            deleter.delete(ctx, coll, new BasicDBObject(), new CRUDDeleteResponse());
+            Assert.fail();
+        } catch (Error e) {
+            Assert.assertEquals(MongoCrudConstants.ERR_JOB_NOT_OWNED, e.getErrorCode());
+        }
+        Assert.assertEquals(8, coll.count());
+
+        // A run that fails releases the job, so it can be resumed right away
+        jobs.update(new BasicDBObject("_id", cp.getJobId()),
+                new BasicDBObject("$set", new BasicDBObject(JobCheckpoint.LEASE_EXPIRES, new Date(0))));
+        cp = JobCheckpoint.open(jobs, "delete", "test", "{}", null, cp.getJobId());
+        deleter.setCheckpoint(cp);
+        coll.update(new BasicDBObject("_id", "doc5"), new BasicDBObject("$unset", new BasicDBObject("objectType", 1)));
+        try {
+            deleter.delete(ctx, coll, new BasicDBObject(), new CRUDDeleteResponse());
+            Assert.fail();
+        } catch (Error e) {
+        }
+        DBObject job = jobs.findOne(new BasicDBObject("_id", cp.getJobId()));
+        Assert.assertEquals(JobCheckpoint.STATUS_FAILED, job.get(JobCheckpoint.STATUS));
+        Assert.assertEquals("doc3", job.get(JobCheckpoint.LASTID));
+        cp = JobCheckpoint.open(jobs, "delete", "test", "{}", null, cp.getJobId());
+        Assert.assertEquals("doc3", cp.getStartAfterId());
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.crud.mongo;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+
+public class LockLeaseManagerTest extends AbstractMongoCrudTest {
+
+    @Test
+    public void renewTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll);
+        LockLeaseManager mgr = new LockLeaseManager(locking, 20);
+        try {
+            Assert.assertTrue(mgr.acquire("1", "rsc1", 100l));
+            Assert.assertTrue(mgr.acquire("1", "rsc2", 100l));
+            Thread.sleep(300);
+            Assert.assertEquals(1, locking.getLockCount("1", "rsc1"));
+            Assert.assertEquals(1, locking.getLockCount("1", "rsc2"));
+            Assert.assertFalse(locking.acquire("2", "rsc1", null));
+            Assert.assertTrue(mgr.release("1", "rsc1"));
+            Assert.assertFalse(mgr.isManaged("1", "rsc1"));
+            Assert.assertTrue(mgr.isManaged("1", "rsc2"));
+        } finally {
+            mgr.close();
+        }
+    }
+
+    @Test
+    public void renewalFailureTest() throws Exception {
+        MongoLocking locking = new MongoLocking(coll);
+        LockLeaseManager mgr = new LockLeaseManager(locking, 20);
+        final List<String> failed = new ArrayList<>();
+        mgr.addListener(new LockLeaseListener() {
+            @Override
+            public void renewalFailed(String callerId, String resourceId) {
+                synchronized (failed) {
+                    failed.add(callerId + "/" + resourceId);
+                }
+            }
+        });
+        try {
+            Assert.assertTrue(mgr.acquire("1", "rsc1", 100l));
+            Assert.assertTrue(mgr.acquire("1", "rsc2", 100l));
+            coll.remove(new BasicDBObject(MongoLocking.RESOURCEID, "rsc1"));
+            Thread.sleep(200);
+            synchronized (failed) {
+                Assert.assertEquals(1, failed.size());
+                Assert.assertEquals("1/rsc1", failed.get(0));
+            }
+            Assert.assertFalse(mgr.isManaged("1", "rsc1"));
+            Assert.assertTrue(mgr.isManaged("1", "rsc2"));
+        } finally {
+            mgr.close();
+        }
+    }
+}
@@ -382,8 +382,7 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
                 projection("{'field':'_id'}"));
         Assert.assertEquals(1, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         DBObject obj = coll.find(new BasicDBObject("field3", 1000), new BasicDBObject("_id", 1)).next();
         Assert.assertNotNull(obj);
         System.out.println("DBObject:" + obj);
@@ -398,19 +397,18 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
                 update("{ '$set': { 'field3' : 1000 } }"),
                 projection("{'field':'_id'}"));
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field3", new BasicDBObject("$gt", 10))).count());
 
         // Bulk direct update
+        controller.setServerSideBulkWrites(true);
         ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
         ctx.add(md);
         upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
                 update("{ '$set': { 'field3' : 1000 } }"), null);
-        //Assert.assertEquals(AtomicIterateUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
-        Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(BasicDocUpdater.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field3", new BasicDBObject("$gt", 10))).count());
@@ -422,9 +420,114 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
                 update("{ '$set': { 'field7.0.elemf1' : 'blah' } }"), projection("{'field':'_id'}"));
         Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        // No constraints on the updated fields
+        Assert.assertFalse(((IterateAndUpdate) ctx.getProperty(MongoCRUDController.PROP_UPDATER)).isValidateDocuments());
         Assert.assertEquals(10, upd.getNumUpdated());
         Assert.assertEquals(0, upd.getNumFailed());
         Assert.assertEquals(10, coll.find(new BasicDBObject("field7.0.elemf1", "blah")).count());
+
+        // Array append runs in the db
+        ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+        ctx.add(md);
+        upd = controller.update(ctx, query("{'field':'field3','op':'>','rvalue':10}"),
+                update("{ '$append': { 'field6.nf6' : 'three' } }"), null);
+        Assert.assertEquals(BasicDocUpdater.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+        Assert.assertEquals(10, upd.getNumUpdated());
+        Assert.assertEquals(10, coll.find(new BasicDBObject("field6.nf6.2", "three").append("field6.nf6#", 3)).count());
+    }
+
+    @Test
+    public void parallelIterateUpdateTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+        ctx.add(md);
+        List<JsonDoc> docs = new ArrayList<>();
+        int numDocs = 20;
+        for (int i = 0; i < numDocs; i++) {
+            JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+            doc.modify(new Path("field1"), nodeFactory.textNode("doc" + i), false);
+            doc.modify(new Path("field3"), nodeFactory.numberNode(i), false);
+            docs.add(doc);
+        }
+        ctx.addDocuments(docs);
+        controller.insert(ctx, projection("{'field':'_id'}"));
+
+        controller.setUpdateThreads(4);
+        controller.setUpdateBatchSize(3);
+        try {
+            ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+            ctx.add(md);
+            CRUDUpdateResponse upd = controller.update(ctx, query("{'field':'field3','op':'>=','rvalue':5}"),
+                    update("{ '$set': { 'field7.0.elemf1' : 'blah' } }"), projection("{'field':'field3'}"));
+            Assert.assertEquals(IterateAndUpdate.class, ctx.getProperty(MongoCRUDController.PROP_UPDATER).getClass());
+            // Document interceptors are called around each write
+            Assert.assertFalse(((IterateAndUpdate) ctx.getProperty(MongoCRUDController.PROP_UPDATER)).isBatchWrites());
+            Assert.assertEquals(15, upd.getNumUpdated());
+            Assert.assertEquals(0, upd.getNumFailed());
+            Assert.assertEquals(15, coll.find(new BasicDBObject("field7.0.elemf1", "blah")).count());
+            // Documents are reported in the order they are read
+            Assert.assertEquals(15, ctx.getDocuments().size());
+            for (DocCtx doc : ctx.getDocuments()) {
+                Assert.assertEquals(CRUDOperation.UPDATE, doc.getCRUDOperationPerformed());
+            }
+
+            // Batches are written with a bulk update
+            controller.setServerSideBulkWrites(true);
+            ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+            ctx.add(md);
+            upd = controller.update(ctx, query("{'field':'field3','op':'>=','rvalue':5}"),
+                    update("{ '$set': { 'field7.0.elemf1' : 'blah2' } }"), projection("{'field':'field3'}"));
+            Assert.assertTrue(((IterateAndUpdate) ctx.getProperty(MongoCRUDController.PROP_UPDATER)).isBatchWrites());
+            Assert.assertEquals(15, upd.getNumUpdated());
+            Assert.assertEquals(0, upd.getNumFailed());
+            Assert.assertEquals(15, coll.find(new BasicDBObject("field7.0.elemf1", "blah2")).count());
+        } finally {
+            controller.setServerSideBulkWrites(false);
+            controller.setUpdateThreads(1);
+            controller.setUpdateBatchSize(IterateAndUpdate.DEFAULT_BATCH_SIZE);
+        }
+    }
+
+    @Test
+    public void chunkedIterateUpdateTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        TestCRUDOperationContext ctx = new TestCRUDOperationContext(CRUDOperation.INSERT);
+        ctx.add(md);
+        List<JsonDoc> docs = new ArrayList<>();
+        int numDocs = 20;
+        for (int i = 0; i < numDocs; i++) {
+            JsonDoc doc = new JsonDoc(loadJsonNode("./testdata1.json"));
+            doc.modify(new Path("field1"), nodeFactory.textNode("doc" + i), false);
+            doc.modify(new Path("field3"), nodeFactory.numberNode(i), false);
+            docs.add(doc);
+        }
+        ctx.addDocuments(docs);
+        controller.insert(ctx, projection("{'field':'_id'}"));
+
+        controller.setIterateChunkSize(3);
+        controller.setJobCollection("jobs");
+        try {
+            ctx = new TestCRUDOperationContext(CRUDOperation.UPDATE);
+            ctx.add(md);
+            CRUDUpdateResponse upd = controller.update(ctx, query("{'field':'field3','op':'>=','rvalue':5}"),
+                    update("{ '$set': { 'field7.0.elemf1' : 'blah' } }"), projection("{'field':'field3'}"));
+            Assert.assertEquals(15, upd.getNumUpdated());
+            Assert.assertEquals(15, coll.find(new BasicDBObject("field7.0.elemf1", "blah")).count());
+            DBObject job = db.getCollection("jobs").findOne();
+            Assert.assertEquals(job.get("_id"), ctx.getProperty(MongoCRUDController.PROP_JOB));
+            Assert.assertEquals(JobCheckpoint.STATUS_COMPLETED, job.get(JobCheckpoint.STATUS));
+            Assert.assertEquals(15L, ((Number) job.get(JobCheckpoint.PROCESSED)).longValue());
+
+            ctx = new TestCRUDOperationContext(CRUDOperation.DELETE);
+            ctx.add(md);
+            CRUDDeleteResponse del = controller.delete(ctx, query("{'field':'field3','op':'>=','rvalue':5}"));
+            Assert.assertEquals(15, del.getNumDeleted());
+            Assert.assertEquals(5, coll.find(null).count());
+        } finally {
+            controller.setIterateChunkSize(0);
+            controller.setJobCollection(null);
+            db.getCollection("jobs").drop();
+        }
     }
 
     @Test
@@ -486,6 +589,7 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         upd = controller.update(ctx, query("{'field':'field1','op':'=','rvalue':'doc1'}"),
                                 update("[ {'$append' : {'field7':{}} }, { '$set': { 'field7.-1.elemf2':'$null'} } ]"),
                                 projection("{'field':'*','recursive':1}"));
+        Assert.assertTrue(((IterateAndUpdate) ctx.getProperty(MongoCRUDController.PROP_UPDATER)).isValidateDocuments());
         Assert.assertEquals(0, upd.getNumUpdated());
         Assert.assertEquals(1, upd.getNumFailed());
     }
@@ -841,9 +945,12 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         Assert.assertEquals(numDocs, coll.find(null).count());
 
         // Single doc delete
+        controller.setServerSideBulkWrites(true);
         ctx = new TestCRUDOperationContext(CRUDOperation.DELETE);
         ctx.add(md);
         CRUDDeleteResponse del = controller.delete(ctx, query("{'field':'field3','op':'$eq','rvalue':10}"));
+        // No hooks, documents are deleted in the db
+        Assert.assertEquals(BasicDocDeleter.class, ctx.getProperty(MongoCRUDController.PROP_DELETER).getClass());
         Assert.assertEquals(1, del.getNumDeleted());
         Assert.assertEquals(numDocs - 1, coll.find(null).count());
 
@@ -853,6 +960,25 @@ public class MongoCRUDControllerTest extends AbstractMongoCrudTest {
         del = controller.delete(ctx, query("{'field':'field3','op':'>','rvalue':10}"));
         Assert.assertEquals(9, del.getNumDeleted());
         Assert.assertEquals(10, coll.find(null).count());
+
+        // Batched delete
+        controller.setDeleteBatchSize(3);
+        controller.setServerSideBulkWrites(false);
+        try {
+            ctx = new TestCRUDOperationContext(CRUDOperation.DELETE);
+            ctx.add(md);
+            del = controller.delete(ctx, query("{'field':'field3','op':'>=','rvalue':2}"));
+            Assert.assertEquals(IterateDeleter.class, ctx.getProperty(MongoCRUDController.PROP_DELETER).getClass());
+            Assert.assertEquals(8, del.getNumDeleted());
+            Assert.assertEquals(2, coll.find(null).count());
+            Assert.assertEquals(8, ctx.getDocuments().size());
+            for (DocCtx doc : ctx.getDocuments()) {
+                Assert.assertEquals(CRUDOperation.DELETE, doc.getCRUDOperationPerformed());
+            }
+        } finally {
+            controller.setDeleteBatchSize(IterateDeleter.DEFAULT_BATCH_SIZE);
+            controller.setServerSideBulkWrites(true);
+        }
     }
 
     @Test
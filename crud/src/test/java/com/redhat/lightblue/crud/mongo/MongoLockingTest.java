@@ -18,9 +18,16 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.Arrays;
+
 import org.junit.Test;
 import org.junit.Assert;
 
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import com.redhat.lightblue.extensions.synch.InvalidLockException;
+
 public class MongoLockingTest extends AbstractMongoCrudTest {
 
     @Test
@@ -80,5 +87,157 @@ public class MongoLockingTest extends AbstractMongoCrudTest {
         Thread.sleep(50);
         locking.ping("1","rsc1");
     }
-           
+
+    @Test
+    public void pingFromAnotherInstanceTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        MongoLocking other=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Thread.sleep(50);
+        other.ping("1","rsc1");
+        Thread.sleep(70);
+        Assert.assertFalse(other.acquire("2","rsc1",null));
+        Assert.assertTrue(other.release("1","rsc1"));
+    }
+
+    @Test
+    public void takeoverExpiredLockTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Thread.sleep(110);
+        Assert.assertTrue(locking.acquire("2","rsc1",null));
+        Assert.assertEquals(1,locking.getLockCount("2","rsc1"));
+        Assert.assertEquals(1,coll.count());
+        Assert.assertTrue(locking.release("2","rsc1"));
+    }
+
+    @Test
+    public void acquireAllTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("1","rsc2",null));
+        Assert.assertTrue(locking.acquireAll("1",Arrays.asList("rsc3","rsc1","rsc2"),null));
+        Assert.assertEquals(1,locking.getLockCount("1","rsc1"));
+        Assert.assertEquals(2,locking.getLockCount("1","rsc2"));
+        Assert.assertEquals(1,locking.getLockCount("1","rsc3"));
+        Assert.assertFalse(locking.acquire("2","rsc3",null));
+        locking.releaseAll("1",Arrays.asList("rsc1","rsc2","rsc3"));
+        Assert.assertEquals(1,locking.getLockCount("1","rsc2"));
+        Assert.assertEquals(1,coll.count());
+        Assert.assertTrue(locking.release("1","rsc2"));
+    }
+
+    @Test
+    public void acquireAllRollbackTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("2","rsc2",null));
+        Assert.assertTrue(locking.acquire("1","rsc1",null));
+        Assert.assertFalse(locking.acquireAll("1",Arrays.asList("rsc1","rsc2","rsc3"),null));
+        // Only the locks acquired before the call remain
+        Assert.assertEquals(1,locking.getLockCount("1","rsc1"));
+        Assert.assertEquals(1,locking.getLockCount("2","rsc2"));
+        Assert.assertEquals(2,coll.count());
+        try {
+            locking.releaseAll("1",Arrays.asList("rsc1","rsc3"));
+            Assert.fail();
+        } catch (InvalidLockException e) {}
+        Assert.assertEquals(1,coll.count());
+    }
+
+    @Test
+    public void blockingAcquireTimeoutTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("1","rsc1",null));
+        long start=System.currentTimeMillis();
+        Assert.assertFalse(locking.acquire("2","rsc1",null,100));
+        Assert.assertTrue(System.currentTimeMillis()-start>=100);
+        // A blocking acquire is a single failure, however many times it polled
+        Assert.assertEquals(1,locking.getMetrics().getFailedCount());
+        Assert.assertTrue(locking.release("1","rsc1"));
+    }
+
+    @Test
+    public void blockingAcquireWakeUpTest() throws Exception {
+        final MongoLocking locking=new MongoLocking(coll);
+        // Backoff is long enough that only a wake up can acquire the lock in time
+        locking.setBackoff(5000,5000);
+        Assert.assertTrue(locking.acquire("1","rsc1",null));
+        final boolean[] result=new boolean[1];
+        Thread t=new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0]=locking.acquire("2","rsc1",null,10000);
+                } catch (InterruptedException e) {}
+            }
+        };
+        t.start();
+        Thread.sleep(100);
+        Assert.assertTrue(locking.release("1","rsc1"));
+        t.join(1000);
+        Assert.assertTrue(result[0]);
+        Assert.assertEquals(1,locking.getLockCount("2","rsc1"));
+        Assert.assertTrue(locking.release("2","rsc1"));
+    }
+
+    @Test
+    public void expirationIndexTest() throws Exception {
+        new MongoLocking(coll,30);
+        Assert.assertEquals(30,expireAfterSeconds());
+        // Grace period changes are applied to the existing index
+        new MongoLocking(coll,60);
+        Assert.assertEquals(60,expireAfterSeconds());
+    }
+
+    private long expireAfterSeconds() {
+        for(DBObject index:coll.getIndexInfo()) {
+            if(new BasicDBObject(MongoLocking.EXPIRATION,1).equals(index.get("key")))
+                return ((Number)index.get("expireAfterSeconds")).longValue();
+        }
+        Assert.fail("No expiration index");
+        return 0;
+    }
+
+    @Test
+    public void acquireRemovedLockTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Thread.sleep(110);
+        // Expired lock is purged by the server
+        coll.remove(new BasicDBObject(MongoLocking.RESOURCEID,"rsc1"));
+        Assert.assertTrue(locking.acquire("2","rsc1",null));
+        try {
+            locking.release("1","rsc1");
+            Assert.fail();
+        } catch (InvalidLockException e) {}
+        Assert.assertTrue(locking.release("2","rsc1"));
+    }
+
+    @Test
+    public void metricsTest() throws Exception {
+        MongoLocking locking=new MongoLocking(coll);
+        LockingMetrics metrics=locking.getMetrics();
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Assert.assertTrue(locking.acquire("1","rsc1",100l));
+        Assert.assertFalse(locking.acquire("2","rsc1",null));
+        Assert.assertFalse(locking.acquire("2","rsc1",null));
+        Assert.assertTrue(locking.acquire("1","rsc2",100l));
+        Assert.assertFalse(locking.acquire("2","rsc2",null));
+        locking.ping("1","rsc2");
+        Thread.sleep(110);
+        Assert.assertTrue(locking.acquire("2","rsc2",null));
+        Assert.assertFalse(locking.release("1","rsc1"));
+        Assert.assertTrue(locking.release("1","rsc1"));
+
+        Assert.assertEquals(2,metrics.getAcquiredCount());
+        Assert.assertEquals(1,metrics.getReentrantCount());
+        Assert.assertEquals(1,metrics.getTakeoverCount());
+        Assert.assertEquals(3,metrics.getFailedCount());
+        Assert.assertEquals(2,metrics.getReleasedCount());
+        Assert.assertEquals(1,metrics.getPingCount());
+        Assert.assertEquals(7,metrics.getAcquireLatency().getCount());
+        Assert.assertEquals(1,metrics.getHoldTime().getCount());
+        Assert.assertTrue(metrics.getHoldTimeMax()>=110);
+        Assert.assertArrayEquals(new String[] {"rsc1=2","rsc2=1"},metrics.getTopContendedResources());
+    }
 }
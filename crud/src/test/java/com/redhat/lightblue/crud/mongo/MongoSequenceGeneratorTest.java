@@ -18,9 +18,16 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
 import org.junit.Test;
 import org.junit.Assert;
 
+import com.mongodb.BasicDBObject;
+
 public class MongoSequenceGeneratorTest extends AbstractMongoCrudTest {
 
     @Test
@@ -35,4 +42,87 @@ public class MongoSequenceGeneratorTest extends AbstractMongoCrudTest {
         Assert.assertEquals(101,g.getNextSequenceValue("s2",1234,123));
         Assert.assertEquals(-990,g.getNextSequenceValue("s3",123,123));
     }
+
+    @Test
+    public void blockTest() throws Exception {
+        MongoSequenceGenerator g1=new MongoSequenceGenerator(coll,10);
+        MongoSequenceGenerator g2=new MongoSequenceGenerator(coll,10);
+
+        Assert.assertEquals(1,g1.getNextSequenceValue("s1",1,2));
+        Assert.assertEquals(3,g1.getNextSequenceValue("s1",1,2));
+        // g2 gets the next block
+        Assert.assertEquals(21,g2.getNextSequenceValue("s1",1,2));
+        for(int i=2;i<10;i++)
+            Assert.assertEquals(1+i*2,g1.getNextSequenceValue("s1",1,2));
+        // g1 exhausted its block
+        Assert.assertEquals(41,g1.getNextSequenceValue("s1",1,2));
+        Assert.assertEquals(61l,coll.findOne(new BasicDBObject(MongoSequenceGenerator.NAME,"s1")).get(MongoSequenceGenerator.VALUE));
+    }
+
+    @Test
+    public void concurrentBlockTest() throws Exception {
+        final MongoSequenceGenerator g=new MongoSequenceGenerator(coll,7);
+        final Set<Long> values=Collections.synchronizedSet(new HashSet<Long>());
+        Thread[] threads=new Thread[4];
+        for(int t=0;t<threads.length;t++) {
+            threads[t]=new Thread() {
+                @Override
+                public void run() {
+                    for(int i=0;i<100;i++)
+                        values.add(g.getNextSequenceValue("s1",1,1));
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread t:threads)
+            t.join();
+        Assert.assertEquals(400,values.size());
+        for(long l=1;l<=400;l++)
+            Assert.assertTrue(values.contains(l));
+    }
+
+    @Test
+    public void multipleValuesTest() throws Exception {
+        MongoSequenceGenerator g=new MongoSequenceGenerator(coll,10);
+        Assert.assertEquals(1,g.getNextSequenceValue("s1",1,1));
+        // Fits in the current block
+        Assert.assertArrayEquals(new long[] {2,3,4},g.getNextSequenceValues("s1",1,1,3));
+        // Doesn't fit, reserved separately
+        Assert.assertArrayEquals(new long[] {11,12,13,14,15,16,17,18,19,20,21,22},g.getNextSequenceValues("s1",1,1,12));
+        Assert.assertEquals(23,g.getNextSequenceValue("s1",1,1));
+        // New sequence
+        Assert.assertArrayEquals(new long[] {100,105},g.getNextSequenceValues("s2",100,5,2));
+        Assert.assertEquals(110,g.getNextSequenceValue("s2",100,5));
+    }
+
+    private long sequenceValue(String name) {
+        return (Long)coll.findOne(new BasicDBObject(MongoSequenceGenerator.NAME,name)).get(MongoSequenceGenerator.VALUE);
+    }
+
+    @Test
+    public void prefetchTest() throws Exception {
+        MongoSequenceGenerator g=new MongoSequenceGenerator(coll,4);
+        // Run the prefetch in the calling thread
+        g.setPrefetchExecutor(new Executor() {
+            @Override
+            public void execute(Runnable r) {
+                r.run();
+            }
+        });
+        g.setMaxBlockSize(16);
+        g.setBurstIntervalMsec(60000);
+        Assert.assertEquals(1,g.getNextSequenceValue("s1",1,1));
+        Assert.assertEquals(2,g.getNextSequenceValue("s1",1,1));
+        Assert.assertEquals(5,sequenceValue("s1"));
+        // Last quarter of the block, next block is reserved, and it is larger
+        Assert.assertEquals(3,g.getNextSequenceValue("s1",1,1));
+        Assert.assertEquals(13,sequenceValue("s1"));
+        Assert.assertEquals(4,g.getNextSequenceValue("s1",1,1));
+        for(int i=5;i<=9;i++)
+            Assert.assertEquals(i,g.getNextSequenceValue("s1",1,1));
+        Assert.assertEquals(13,sequenceValue("s1"));
+        Assert.assertEquals(10,g.getNextSequenceValue("s1",1,1));
+        Assert.assertEquals(29,sequenceValue("s1"));
+        Assert.assertEquals(11,g.getNextSequenceValue("s1",1,1));
+    }
 }
@@ -21,6 +21,7 @@ package com.redhat.lightblue.crud.mongo;
 import com.redhat.lightblue.crud.CRUDOperationContext;
 import com.redhat.lightblue.crud.CRUDOperation;
 import static com.redhat.lightblue.crud.mongo.AbstractMongoCrudTest.factory;
+import com.redhat.lightblue.crud.Factory;
 import com.redhat.lightblue.metadata.EntityMetadata;
 import java.util.HashMap;
 import java.util.Map;
@@ -38,7 +39,11 @@ public class TestCRUDOperationContext extends CRUDOperationContext {
     }
 
     public TestCRUDOperationContext(String name,CRUDOperation op) {
-        super(op, name, factory, null);
+        this(name, op, factory);
+    }
+
+    public TestCRUDOperationContext(String name, CRUDOperation op, Factory f) {
+        super(op, name, f, null);
     }
 
     public void add(EntityMetadata md) {
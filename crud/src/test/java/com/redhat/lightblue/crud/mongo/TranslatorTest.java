@@ -18,6 +18,7 @@
  */
 package com.redhat.lightblue.crud.mongo;
 
+import java.util.List;
 import java.util.Set;
 import com.fasterxml.jackson.databind.node.NullNode;
 import com.fasterxml.jackson.databind.JsonNode;
@@ -138,32 +139,52 @@ public class TranslatorTest extends AbstractMongoCrudTest {
      $update : foreach_update_expression } }
      */
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateAppendValue() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-append-value.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        DBObject push = (DBObject) ((DBObject) mongoUpdateExpr.get("$push")).get("field6.nf6");
+        Assert.assertEquals(1, ((List) push.get("$each")).size());
+        Assert.assertEquals("new value", ((List) push.get("$each")).get(0));
+        Assert.assertNull(push.get("$position"));
+        Assert.assertEquals(1, ((DBObject) mongoUpdateExpr.get("$inc")).get("field6.nf6#"));
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateAppendValues() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-append-values.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        DBObject push = (DBObject) ((DBObject) mongoUpdateExpr.get("$push")).get("field6.nf6");
+        Assert.assertEquals(2, ((List) push.get("$each")).size());
+        Assert.assertEquals(2, ((DBObject) mongoUpdateExpr.get("$inc")).get("field6.nf6#"));
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateInsertValue() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-insert-value.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        DBObject push = (DBObject) ((DBObject) mongoUpdateExpr.get("$push")).get("field6.nf6");
+        Assert.assertEquals(1, ((List) push.get("$each")).size());
+        Assert.assertEquals(1, push.get("$position"));
+        Assert.assertEquals(1, ((DBObject) mongoUpdateExpr.get("$inc")).get("field6.nf6#"));
     }
 
-    @Test(expected = CannotTranslateException.class)
+    @Test
     public void translateUpdateInsertValues() throws Exception {
         String updateQueryJson = loadResource(getClass().getSimpleName() + "-update-insert-values.json");
         UpdateExpression ue = update(updateQueryJson);
-        translator.translate(md, ue);
+        DBObject mongoUpdateExpr = translator.translate(md, ue);
+
+        DBObject push = (DBObject) ((DBObject) mongoUpdateExpr.get("$push")).get("field6.nf6");
+        Assert.assertEquals(2, ((List) push.get("$each")).size());
+        Assert.assertEquals(1, push.get("$position"));
+        Assert.assertEquals(2, ((DBObject) mongoUpdateExpr.get("$inc")).get("field6.nf6#"));
     }
 
     @Test(expected = CannotTranslateException.class)
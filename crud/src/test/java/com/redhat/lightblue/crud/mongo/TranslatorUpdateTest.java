@@ -96,6 +96,18 @@ public class TranslatorUpdateTest extends AbstractMongoCrudTest {
         translator.translate(md, update("{ '$set': { 'field7': '$null'} }"));
     }
 
+    @Test(expected = CannotTranslateException.class)
+    public void objArrAppendTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        translator.translate(md, update("{ '$append': { 'field7': {} } }"));
+    }
+
+    @Test(expected = CannotTranslateException.class)
+    public void conflictingPathTest() throws Exception {
+        EntityMetadata md = getMd("./testMetadata.json");
+        translator.translate(md, update("[ { '$set': { 'field6.nf1':'blah'} }, { '$unset': 'field6' } ]"));
+    }
+
     @Test(expected = CannotTranslateException.class)
     public void objTest() throws Exception {
         EntityMetadata md = getMd("./testMetadata.json");
@@ -0,0 +1,74 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.List;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Runs a list of single-document updates as one unordered bulk
+ * operation. queries.get(i) is updated using updates.get(i). If
+ * upsert is true, a document is inserted for every query that does
+ * not match, and the index of that query is reported in the
+ * upserts of the result.
+ */
+public class BulkUpdateCommand extends AbstractMongoCommand<BulkWriteResult> {
+    private final List<DBObject> queries;
+    private final List<DBObject> updates;
+    private final WriteConcern concern;
+    private final boolean upsert;
+
+    public BulkUpdateCommand(DBCollection collection, List<DBObject> queries, List<DBObject> updates, WriteConcern concern) {
+        this(collection, queries, updates, false, concern);
+    }
+
+    public BulkUpdateCommand(DBCollection collection, List<DBObject> queries, List<DBObject> updates, boolean upsert, WriteConcern concern) {
+        super(BulkUpdateCommand.class.getSimpleName(), collection);
+        if (queries.size() != updates.size()) {
+            throw new IllegalArgumentException("queries.size != updates.size");
+        }
+        this.queries = queries;
+        this.updates = updates;
+        this.concern = concern;
+        this.upsert = upsert;
+    }
+
+    @Override
+    protected BulkWriteResult runMongoCommand() {
+        BulkWriteOperation bulk = getDBCollection().initializeUnorderedBulkOperation();
+        int n = queries.size();
+        for (int i = 0; i < n; i++) {
+            if (upsert) {
+                bulk.find(queries.get(i)).upsert().updateOne(updates.get(i));
+            } else {
+                bulk.find(queries.get(i)).updateOne(updates.get(i));
+            }
+        }
+        if (concern != null) {
+            return bulk.execute(concern);
+        } else {
+            return bulk.execute();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ Copyright 2013 Red Hat, Inc. and/or its affiliates.
+
+ This file is part of lightblue.
+
+ This program is free software: you can redistribute it and/or modify
+ it under the terms of the GNU General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.redhat.lightblue.mongo.hystrix;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BulkUpdateCommandTest extends AbstractMongoTest {
+    @Test
+    public void execute() {
+        String newValue = "new value";
+        List<DBObject> queries = new ArrayList<>();
+        List<DBObject> updates = new ArrayList<>();
+        queries.add(new BasicDBObject(key1, "obj1"));
+        queries.add(new BasicDBObject(key1, "obj2").append(key2, "bar1"));
+        queries.add(new BasicDBObject(key1, "none"));
+        for (int i = 0; i < 3; i++) {
+            updates.add(new BasicDBObject("$set", new BasicDBObject(key2, newValue)));
+        }
+
+        BulkWriteResult result = new BulkUpdateCommand(coll, queries, updates, WriteConcern.SAFE).execute();
+
+        Assert.assertNotNull(result);
+        Assert.assertEquals(2, result.getMatchedCount());
+        Assert.assertEquals(2, coll.find(new BasicDBObject(key2, newValue)).count());
+        // updateOne updates a single document per query
+        Assert.assertEquals(1, coll.find(new BasicDBObject(key1, "obj2").append(key2, newValue)).count());
+    }
+
+    @Test
+    public void upsert() {
+        List<DBObject> queries = new ArrayList<>();
+        List<DBObject> updates = new ArrayList<>();
+        queries.add(new BasicDBObject(key1, "obj1"));
+        queries.add(new BasicDBObject(key1, "none"));
+        for (int i = 0; i < 2; i++) {
+            updates.add(new BasicDBObject("$set", new BasicDBObject(key2, "new value")));
+        }
+
+        BulkWriteResult result = new BulkUpdateCommand(coll, queries, updates, true, WriteConcern.SAFE).execute();
+
+        Assert.assertEquals(1, result.getMatchedCount());
+        Assert.assertEquals(1, result.getUpserts().size());
+        Assert.assertEquals(1, result.getUpserts().get(0).getIndex());
+    }
+}
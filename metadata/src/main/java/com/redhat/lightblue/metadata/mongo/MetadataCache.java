@@ -18,35 +18,112 @@
  */
 package com.redhat.lightblue.metadata.mongo;
 
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-import java.lang.ref.WeakReference;
+import java.lang.ref.SoftReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.mongodb.Bytes;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBObject;
-import com.mongodb.WriteResult;
 
 import com.redhat.lightblue.EntityVersion;
 
+import com.redhat.lightblue.metadata.EntityInfo;
 import com.redhat.lightblue.metadata.EntityMetadata;
 
+/**
+ * Metadata cache. Lookups are lock-free. The cache keeps strong
+ * references to at most <code>maxSize</code> entries. When full, the
+ * least recently used entries are evicted in batches of a tenth of
+ * the cache size, so the cache is scanned once per batch, not on
+ * every put. Optionally, evicted entries
+ * are kept as soft references, so they are dropped only when the
+ * memory is needed. Entity infos are cached separately, so the
+ * default version of an entity can be resolved from the cache.
+ *
+ * The cache is invalidated when the collection version in the db
+ * changes, or when the cache TTL expires. If a change collection is
+ * set, changes published by other nodes invalidate the changed
+ * entities as soon as they are received, and the collection version
+ * is polled only while the change collection cannot be tailed.
+ *
+ * Metadata changes increment a version counter for the changed entity
+ * along with the collection version, both stored in the collection
+ * version document. When the collection version changes,
+ * only the entities whose counters changed are invalidated. If the
+ * collection version changed but no entity counter did, the whole
+ * cache is invalidated.
+ *
+ * If background refresh is started, lookups never check the cache
+ * validity. The collection version is polled by a background
+ * thread instead, and the changed entries are reloaded and replaced
+ * using the given loader, so lookups keep returning the previous
+ * metadata until the new one is ready. The cache is reloaded
+ * the same way shortly before its TTL expires.
+ *
+ * Metadata loaded from the db may be stale by the time it is put
+ * into the cache, if the entity is invalidated while it is being
+ * loaded. To prevent that, record the entity change count using
+ * {@link #getChangeCount(String)} before loading, and pass it to
+ * {@link #put(EntityMetadata,long)}. The metadata is not cached if
+ * the entity changed in between.
+ */
 public class MetadataCache {
     
     private static Logger LOGGER=LoggerFactory.getLogger(MetadataCache.class);
 
     private static final String LITERAL_COLL_VER="collectionVersion";
+    private static final String LITERAL_ENTITY_VERSIONS="entityVersions";
+    private static final String LITERAL_ENTITY="entity";
+    private static final String LITERAL_VERSION="version";
+    private static final String LITERAL_TIME="t";
+
+    private static final long CHANGE_COLLECTION_SIZE=1024l*1024l;
+    private static final long TAILER_RETRY_MSECS=1000l;
+
+    public static final int DEFAULT_MAX_SIZE=1000;
+
+    /**
+     * Loads metadata from the db for background refresh
+     */
+    public interface Loader {
+        /**
+         * Returns the entity metadata, or null if it does not exist
+         */
+        EntityMetadata load(String entityName,String version);
+
+        /**
+         * Returns the entity info, or null if it does not exist
+         */
+        EntityInfo loadInfo(String entityName);
+    }
 
     /**
      * This is the collection version number we expect to see in the
      * database. If this doesn't match the value in db, someone
      * updated metadata, we refresh
      */
-    private long expectedCollectionVersion;
+    private volatile long expectedCollectionVersion;
 
     /**
      * Last time we retrieved collection version
@@ -56,19 +133,73 @@ public class MetadataCache {
     /**
      * The collection version lookup period
      */
-    private long versionLookupPeriodMsecs=10l*1000l;
+    private volatile long versionLookupPeriodMsecs=10l*1000l;
 
     /**
      * Cache clear period
      */
-    private long cacheTTLMsecs=10l*60l*1000l;
+    private volatile long cacheTTLMsecs=10l*60l*1000l;
 
     /**
      * Last time we refreshed cache
      */
     private volatile long lastCacheRefreshTime=0l;
+
+    private volatile int maxSize=DEFAULT_MAX_SIZE;
+    private volatile boolean softReferences=false;
+
+    private static final class Entry {
+        private final EntityMetadata md;
+        private volatile long lastAccessTime;
+
+        public Entry(EntityMetadata md) {
+            this.md=md;
+            this.lastAccessTime=System.nanoTime();
+        }
+    }
     
-    private final Map<EntityVersion,WeakReference<EntityMetadata>> cache=new HashMap<>();
+    private final ConcurrentMap<EntityVersion,Entry> cache=new ConcurrentHashMap<>();
+    private final Map<EntityVersion,SoftReference<EntityMetadata>> softCache=new ConcurrentHashMap<>();
+    private final ConcurrentMap<String,EntityInfo> infoCache=new ConcurrentHashMap<>();
+
+    /**
+     * Incremented before all entries are dropped or reloaded
+     */
+    private final AtomicLong allChanges=new AtomicLong();
+
+    /**
+     * Incremented before the entries of an entity are dropped or reloaded
+     */
+    private final ConcurrentMap<String,AtomicLong> entityChanges=new ConcurrentHashMap<>();
+
+    /**
+     * Last seen versions of entities. Modified while holding the lock
+     */
+    private final Map<String,Long> entityVersions=new HashMap<>();
+
+    private volatile DBCollection changeCollection;
+    private ChangeTailer tailer;
+    private volatile boolean pushActive=false;
+
+    private ScheduledExecutorService refresher;
+    private volatile Loader loader;
+    private volatile DBCollection refreshCollection;
+    private volatile long refreshPeriodMsecs;
+
+    /**
+     * Eviction runs on request threads, so it uses a separate lock
+     * from the version checks, which may wait on the db
+     */
+    private final Object evictLock=new Object();
+
+    private final AtomicLong hits=new AtomicLong();
+    private final AtomicLong softHits=new AtomicLong();
+    private final AtomicLong misses=new AtomicLong();
+    private final AtomicLong infoHits=new AtomicLong();
+    private final AtomicLong infoMisses=new AtomicLong();
+    private final AtomicLong evictions=new AtomicLong();
+    private final AtomicLong invalidations=new AtomicLong();
+    private final AtomicLong reloads=new AtomicLong();
 
     /**
      * Sets cache parameters. If null is passed, that parameter is not changed.
@@ -80,43 +211,439 @@ public class MetadataCache {
         if(cacheTTLMsecs!=null)
             this.cacheTTLMsecs=cacheTTLMsecs;
     }
+
+    /**
+     * Sets the maximum number of entries strongly referenced by the cache
+     */
+    public void setMaxSize(int n) {
+        if(n<1)
+            throw new IllegalArgumentException("maxSize="+n);
+        maxSize=n;
+    }
+
+    /**
+     * If true, entries evicted from the cache are kept as soft references
+     */
+    public void setSoftReferences(boolean b) {
+        softReferences=b;
+        if(!b)
+            softCache.clear();
+    }
     
-    public EntityMetadata lookup(DBCollection collection,String entityName,String version) {
+    /**
+     * Invalidates the cache if the TTL expired, or if the collection
+     * version changed. Does nothing if the cache is refreshed in the
+     * background.
+     */
+    private void checkValidity(DBCollection collection) {
+        if(loader!=null)
+            return;
         long now=System.currentTimeMillis();
         if(lastCacheRefreshTime+cacheTTLMsecs<now)
             fullRefresh(collection,now);
-        else if(lastVersionLookupTime+versionLookupPeriodMsecs<now) 
+        else if(!pushActive&&lastVersionLookupTime+versionLookupPeriodMsecs<now) 
             refreshCollectionVersion(collection,now,false);
+    }
+
+    public EntityMetadata lookup(DBCollection collection,String entityName,String version) {
+        checkValidity(collection);
 
-        EntityMetadata md;
         EntityVersion v=new EntityVersion(entityName,version);
-        WeakReference<EntityMetadata> ref=cache.get(v);
-        if(ref!=null)
-            md=ref.get();
-        else
-            md=null;
-        
-        return md;
+        Entry entry=cache.get(v);
+        if(entry!=null) {
+            entry.lastAccessTime=System.nanoTime();
+            hits.incrementAndGet();
+            return entry.md;
+        }
+        SoftReference<EntityMetadata> ref=softCache.get(v);
+        if(ref!=null) {
+            EntityMetadata md=ref.get();
+            if(md!=null) {
+                softHits.incrementAndGet();
+                put(md);
+                return md;
+            }
+            softCache.remove(v);
+        }
+        misses.incrementAndGet();
+        return null;
     }
     
-    public synchronized void put(EntityMetadata md) {
-        cache.put(new EntityVersion(md.getName(),md.getVersion().getValue()),new WeakReference(md));
+    /**
+     * Returns the cached entity info, or null if not cached
+     */
+    public EntityInfo lookupEntityInfo(DBCollection collection,String entityName) {
+        checkValidity(collection);
+        EntityInfo info=infoCache.get(entityName);
+        if(info!=null)
+            infoHits.incrementAndGet();
+        else
+            infoMisses.incrementAndGet();
+        return info;
+    }
+
+    public void putEntityInfo(EntityInfo info) {
+        infoCache.put(info.getName(),info);
+    }
+
+    /**
+     * Caches an entity info loaded from the db, unless the entity
+     * changed since changeCount was recorded. Returns false if the
+     * entity info is not cached.
+     */
+    public boolean putEntityInfo(EntityInfo info,long changeCount) {
+        String entityName=info.getName();
+        if(getChangeCount(entityName)!=changeCount)
+            return false;
+        infoCache.put(entityName,info);
+        // The entity may have changed between the check and the put
+        if(getChangeCount(entityName)!=changeCount) {
+            infoCache.remove(entityName,info);
+            return false;
+        }
+        return true;
+    }
+
+    public void put(EntityMetadata md) {
+        put(new EntityVersion(md.getName(),md.getVersion().getValue()),new Entry(md));
+    }
+
+    /**
+     * Caches metadata loaded from the db, unless the entity changed
+     * since changeCount was recorded. Returns false if the metadata
+     * is not cached.
+     */
+    public boolean put(EntityMetadata md,long changeCount) {
+        String entityName=md.getName();
+        if(getChangeCount(entityName)!=changeCount)
+            return false;
+        EntityVersion v=new EntityVersion(entityName,md.getVersion().getValue());
+        Entry entry=new Entry(md);
+        put(v,entry);
+        // The entity may have changed between the check and the put
+        if(getChangeCount(entityName)!=changeCount) {
+            cache.remove(v,entry);
+            return false;
+        }
+        return true;
+    }
+
+    private void put(EntityVersion v,Entry entry) {
+        cache.put(v,entry);
+        softCache.remove(v);
+        if(cache.size()>maxSize)
+            evict();
+    }
+
+    /**
+     * Returns a number that changes whenever the cached entries of
+     * the entity are invalidated or reloaded
+     */
+    public long getChangeCount(String entityName) {
+        AtomicLong n=entityChanges.get(entityName);
+        return allChanges.get()+(n==null?0:n.get());
+    }
+
+    /**
+     * Increments the change count of the entity. This is called
+     * before dropping or reloading its entries, so a concurrent put
+     * either sees the change, or its entry is dropped
+     */
+    private void entityChanged(String entityName) {
+        AtomicLong n=entityChanges.get(entityName);
+        if(n==null) {
+            AtomicLong x=entityChanges.putIfAbsent(entityName,n=new AtomicLong());
+            if(x!=null)
+                n=x;
+        }
+        n.incrementAndGet();
+    }
+
+    /**
+     * An entry and its last access time when the eviction started
+     */
+    private static final class EvictionCandidate implements Comparable<EvictionCandidate> {
+        private final EntityVersion version;
+        private final long lastAccessTime;
+
+        public EvictionCandidate(EntityVersion version,long lastAccessTime) {
+            this.version=version;
+            this.lastAccessTime=lastAccessTime;
+        }
+
+        @Override
+        public int compareTo(EvictionCandidate x) {
+            return lastAccessTime<x.lastAccessTime?-1:(lastAccessTime==x.lastAccessTime?0:1);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entries, leaving room for a
+     * tenth of the cache size. Lookups proceed while this is running.
+     */
+    private void evict() {
+        synchronized(evictLock) {
+            int n=cache.size()-maxSize;
+            if(n<=0)
+                return;
+            n+=maxSize/10;
+            // Access times change while we sort, so sort a snapshot
+            List<EvictionCandidate> candidates=new ArrayList<>(cache.size());
+            for(Map.Entry<EntityVersion,Entry> e:cache.entrySet())
+                candidates.add(new EvictionCandidate(e.getKey(),e.getValue().lastAccessTime));
+            Collections.sort(candidates);
+            for(EvictionCandidate c:candidates.subList(0,Math.min(n,candidates.size()))) {
+                Entry entry=cache.remove(c.version);
+                if(entry!=null) {
+                    evictions.incrementAndGet();
+                    LOGGER.debug("Evicted {}",c.version);
+                    if(softReferences)
+                        softCache.put(c.version,new SoftReference<>(entry.md));
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the cached entries of an entity
+     */
+    public void invalidate(String entityName) {
+        entityChanged(entityName);
+        for(Iterator<EntityVersion> itr=cache.keySet().iterator();itr.hasNext();)
+            if(entityName.equals(itr.next().getEntity()))
+                itr.remove();
+        for(Iterator<EntityVersion> itr=softCache.keySet().iterator();itr.hasNext();)
+            if(entityName.equals(itr.next().getEntity()))
+                itr.remove();
+        infoCache.remove(entityName);
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Drops all cached entries
+     */
+    public void invalidateAll() {
+        allChanges.incrementAndGet();
+        cache.clear();
+        softCache.clear();
+        infoCache.clear();
+        invalidations.incrementAndGet();
+    }
+
+    public int size() {
+        return cache.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getSoftHitCount() {
+        return softHits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entity info lookups served from the
+     * cache. These are not included in the hit count.
+     */
+    public long getInfoHitCount() {
+        return infoHits.get();
+    }
+
+    /**
+     * Returns the number of entity info lookups not found in the
+     * cache. These are not included in the miss count.
+     */
+    public long getInfoMissCount() {
+        return infoMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Returns the number of entities reloaded in the background
+     */
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    /**
+     * Reloads the cached entries of an entity using the loader, and
+     * replaces them. Entries that cannot be loaded are dropped. If
+     * there is no loader, the entries are dropped.
+     */
+    private void refresh(String entityName) {
+        Loader l=loader;
+        if(l==null) {
+            invalidate(entityName);
+            return;
+        }
+        entityChanged(entityName);
+        for(Iterator<EntityVersion> itr=softCache.keySet().iterator();itr.hasNext();)
+            if(entityName.equals(itr.next().getEntity()))
+                itr.remove();
+        if(infoCache.containsKey(entityName)) {
+            EntityInfo info=null;
+            try {
+                info=l.loadInfo(entityName);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot reload entity info {}: {}",entityName,e);
+            }
+            if(info==null)
+                infoCache.remove(entityName);
+            else
+                infoCache.put(entityName,info);
+        }
+        for(Map.Entry<EntityVersion,Entry> e:cache.entrySet()) {
+            EntityVersion v=e.getKey();
+            if(entityName.equals(v.getEntity())) {
+                EntityMetadata md=null;
+                try {
+                    md=l.load(entityName,v.getVersion());
+                } catch (RuntimeException x) {
+                    LOGGER.warn("Cannot reload {}: {}",v,x);
+                }
+                if(md==null) {
+                    cache.remove(v);
+                } else {
+                    Entry entry=new Entry(md);
+                    entry.lastAccessTime=e.getValue().lastAccessTime;
+                    cache.put(v,entry);
+                }
+            }
+        }
+        reloads.incrementAndGet();
+    }
+
+    /**
+     * Reloads all cached entries using the loader. If there is no
+     * loader, the cache is invalidated.
+     */
+    private void refreshAll() {
+        if(loader==null) {
+            invalidateAll();
+            return;
+        }
+        allChanges.incrementAndGet();
+        softCache.clear();
+        Set<String> entities=new HashSet<>(infoCache.keySet());
+        for(EntityVersion v:cache.keySet())
+            entities.add(v.getEntity());
+        for(String entity:entities)
+            refresh(entity);
+    }
+
+    /**
+     * Starts checking the cache validity in a background thread. The
+     * collection version is polled at the version lookup period,
+     * unless the changes are received from the change
+     * collection. Changed entries, and all entries shortly before the
+     * TTL expires, are reloaded using the loader. Lookups do not
+     * check the cache validity after this call.
+     */
+    public synchronized void startBackgroundRefresh(DBCollection collection,Loader loader) {
+        if(collection==null)
+            throw new IllegalArgumentException("collection");
+        if(loader==null)
+            throw new IllegalArgumentException("loader");
+        refreshCollection=collection;
+        this.loader=loader;
+        if(refresher==null) {
+            refreshPeriodMsecs=Math.max(1l,Math.min(versionLookupPeriodMsecs,cacheTTLMsecs/2));
+            refresher=Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t=new Thread(r,"metadata-cache-refresh");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                    @Override
+                    public void run() {
+                        backgroundRefresh(refreshCollection);
+                    }
+                },0,refreshPeriodMsecs,TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background refresh. Lookups check the cache validity
+     * after this call.
+     */
+    public synchronized void stopBackgroundRefresh() {
+        if(refresher!=null) {
+            refresher.shutdownNow();
+            refresher=null;
+        }
+        loader=null;
+    }
+
+    /**
+     * Returns true if the cache is refreshed in the background
+     */
+    public boolean isBackgroundRefreshActive() {
+        return loader!=null;
+    }
+
+    private void backgroundRefresh(DBCollection collection) {
+        try {
+            long now=System.currentTimeMillis();
+            if(lastCacheRefreshTime+cacheTTLMsecs-refreshPeriodMsecs<now) {
+                // Reload ahead of expiry, so lookups never see an empty cache
+                refreshCollectionVersion(collection,now,true);
+                refreshAll();
+                lastCacheRefreshTime=now;
+            } else if(!pushActive) {
+                refreshCollectionVersion(collection,now,true);
+            }
+        } catch (RuntimeException e) {
+            // The task is not scheduled again if it throws
+            LOGGER.warn("Metadata cache refresh failed: {}",e);
+        }
     }
     
     /**
      * Update the collection version in db, and invalidate cache
      */
     public synchronized void updateCollectionVersion(DBCollection collection) {
+        incrementCollectionVersion(collection,null);
+        invalidateAll();
+    }
+
+    /**
+     * Increments the collection version, and the version of the
+     * entity if entityName is not null, with a single update. If no
+     * one else changed the collection version since it was last
+     * seen, the new versions are recorded as seen, so the next
+     * version check does not treat this change as a remote one.
+     */
+    private void incrementCollectionVersion(DBCollection collection,String entityName) {
         BasicDBObject query=new BasicDBObject(MongoMetadata.LITERAL_ID,LITERAL_COLL_VER);
-        BasicDBObject update=new BasicDBObject("$inc",new BasicDBObject(LITERAL_COLL_VER,1));
-        int nUpdated;
+        BasicDBObject inc=new BasicDBObject(LITERAL_COLL_VER,1);
+        String field=entityName==null?null:escape(entityName);
+        if(field!=null)
+            inc.append(LITERAL_ENTITY_VERSIONS+"."+field,1l);
+        BasicDBObject update=new BasicDBObject("$inc",inc);
+        DBObject versionDoc;
         try {
-            WriteResult r=collection.update(query,update);
-            nUpdated=r.getN();
+            versionDoc=collection.findAndModify(query,null,null,false,update,true,false);
         } catch(Exception e) {
-            nUpdated=0;
+            versionDoc=null;
         }
-        if(nUpdated==0) {
+        if(versionDoc!=null) {
+            localChange(versionDoc,entityName,field);
+        } else {
             // Try to ins
             BasicDBObject doc=new BasicDBObject(MongoMetadata.LITERAL_ID,LITERAL_COLL_VER);
             doc.put(LITERAL_COLL_VER,0l);
@@ -124,13 +651,233 @@ public class MetadataCache {
                 collection.insert(doc);
             } catch (Exception e) {}
         }
-        cache.clear();
+    }
+
+    /**
+     * Records the versions after a change made by this cache, if the
+     * change is the only one since the versions were last seen
+     */
+    private synchronized void localChange(DBObject versionDoc,String entityName,String field) {
+        long v=((Number)versionDoc.get(LITERAL_COLL_VER)).longValue();
+        if(v!=expectedCollectionVersion+1)
+            return;
+        if(entityName!=null) {
+            Object x=versionDoc.get(LITERAL_ENTITY_VERSIONS);
+            Object ev=x instanceof DBObject?((DBObject)x).get(field):null;
+            if(!(ev instanceof Number))
+                return;
+            long newVersion=((Number)ev).longValue();
+            Long old=entityVersions.get(entityName);
+            if(newVersion!=(old==null?0:old)+1)
+                return;
+            entityVersions.put(entityName,newVersion);
+        }
+        expectedCollectionVersion=v;
+    }
+
+    /**
+     * Update the version of the entity and the collection version in
+     * db, invalidate the entity, and publish the change to the other
+     * nodes
+     *
+     * @param entityName The changed entity
+     * @param version The changed version, or null if the change is not specific to a version
+     */
+    public void updateCollectionVersion(DBCollection collection,String entityName,String version) {
+        incrementCollectionVersion(collection,entityName);
+        invalidate(entityName);
+        DBCollection c=changeCollection;
+        if(c!=null) {
+            try {
+                c.insert(new BasicDBObject(LITERAL_ENTITY,entityName).
+                         append(LITERAL_VERSION,version).
+                         append(LITERAL_TIME,new Date()));
+            } catch (RuntimeException e) {
+                LOGGER.warn("Cannot publish metadata change for {}:{}: {}",entityName,version,e);
+            }
+        }
+    }
+
+    /**
+     * Sets the capped collection used to publish metadata changes. The
+     * changes published by other nodes are received by tailing this
+     * collection, and the changed entities are invalidated
+     * immediately. Collection version polling is suspended while
+     * the change collection is being tailed. The collection is
+     * created if it does not exist.
+     */
+    public synchronized void setChangeCollection(DBCollection c) {
+        if(c!=null&&changeCollection!=null&&c.getFullName().equals(changeCollection.getFullName()))
+            return;
+        stopTailer();
+        changeCollection=c;
+        if(c!=null) {
+            if(!c.getDB().collectionExists(c.getName())) {
+                try {
+                    c.getDB().createCollection(c.getName(),new BasicDBObject("capped",true).append("size",CHANGE_COLLECTION_SIZE));
+                    // A tailable cursor on an empty collection is dead
+                    c.insert(new BasicDBObject(LITERAL_TIME,new Date()));
+                } catch (RuntimeException e) {
+                    // Created by someone else
+                    LOGGER.debug("Cannot create {}: {}",c.getName(),e);
+                }
+            }
+            tailer=new ChangeTailer(c);
+            tailer.start();
+        }
+    }
+
+    /**
+     * Stops tailing the change collection, and the background refresh
+     */
+    public synchronized void close() {
+        stopTailer();
+        stopBackgroundRefresh();
+    }
+
+    private void stopTailer() {
+        if(tailer!=null) {
+            tailer.shutdown();
+            tailer=null;
+        }
+        changeCollection=null;
+        pushActive=false;
+    }
+
+    /**
+     * Returns true if the changes are received through the change
+     * collection
+     */
+    public boolean isPushActive() {
+        return pushActive;
+    }
+
+    /**
+     * Tails the change collection, and invalidates the changed entities
+     */
+    private final class ChangeTailer extends Thread {
+        private final DBCollection coll;
+        private volatile boolean stopped=false;
+
+        public ChangeTailer(DBCollection coll) {
+            super("metadata-changes-"+coll.getName());
+            this.coll=coll;
+            setDaemon(true);
+        }
+
+        public void shutdown() {
+            stopped=true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            while(!stopped) {
+                DBCursor cursor=null;
+                try {
+                    // The changes already in the collection are covered
+                    // by the refresh done when the cursor is opened, so
+                    // they are skipped up to the last one
+                    Object skipUntil=null;
+                    DBCursor last=coll.find().sort(new BasicDBObject("$natural",-1)).limit(1);
+                    try {
+                        if(last.hasNext())
+                            skipUntil=last.next().get(MongoMetadata.LITERAL_ID);
+                    } finally {
+                        last.close();
+                    }
+                    cursor=coll.find().
+                        addOption(Bytes.QUERYOPTION_TAILABLE).
+                        addOption(Bytes.QUERYOPTION_AWAITDATA);
+                    if(cursor.hasNext()) {
+                        // Changes might be missed while the cursor
+                        // was not open, so start with a fresh cache
+                        refreshAll();
+                        pushActive=true;
+                        LOGGER.debug("Tailing metadata changes");
+                    }
+                    while(!stopped&&cursor.hasNext()) {
+                        DBObject change=cursor.next();
+                        if(skipUntil!=null) {
+                            if(skipUntil.equals(change.get(MongoMetadata.LITERAL_ID)))
+                                skipUntil=null;
+                            continue;
+                        }
+                        Object entity=change.get(LITERAL_ENTITY);
+                        if(entity!=null) {
+                            LOGGER.debug("Metadata changed: {}",change);
+                            refresh(entity.toString());
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    if(!stopped)
+                        LOGGER.debug("Metadata change cursor failed: {}",e);
+                } finally {
+                    pushActive=false;
+                    if(cursor!=null)
+                        cursor.close();
+                }
+                if(!stopped) {
+                    // Polling takes over until the cursor is reopened
+                    try {
+                        Thread.sleep(TAILER_RETRY_MSECS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
     }
     
+    /**
+     * Entity names are used as field names in the collection version
+     * document, so they cannot contain '.', or start with '$'
+     */
+    private static String escape(String entityName) {
+        String s=entityName.replace("%","%25").replace(".","%2E");
+        if(s.startsWith("$"))
+            s="%24"+s.substring(1);
+        return s;
+    }
+
+    private static String unescape(String s) {
+        return s.replace("%2E",".").replace("%24","$").replace("%25","%");
+    }
+
+    /**
+     * Refreshes the entities whose versions in the collection
+     * version document changed. Returns false if some of the
+     * collection version changes cannot be attributed to entities.
+     */
+    private boolean invalidateChangedEntities(DBObject versionDoc,long collectionVersionDelta) {
+        Map<String,Long> versions=new HashMap<>();
+        Object x=versionDoc.get(LITERAL_ENTITY_VERSIONS);
+        if(x instanceof DBObject) {
+            DBObject obj=(DBObject)x;
+            for(String key:obj.keySet()) {
+                Object v=obj.get(key);
+                if(v instanceof Number)
+                    versions.put(unescape(key),((Number)v).longValue());
+            }
+        }
+        long entityDelta=0;
+        for(Map.Entry<String,Long> entry:versions.entrySet()) {
+            Long old=entityVersions.get(entry.getKey());
+            if(!entry.getValue().equals(old)) {
+                LOGGER.debug("Entity {} changed",entry.getKey());
+                refresh(entry.getKey());
+                entityDelta+=entry.getValue()-(old==null?0:old);
+            }
+        }
+        entityVersions.clear();
+        entityVersions.putAll(versions);
+        return entityDelta>0&&entityDelta>=collectionVersionDelta;
+    }
+
     /**
      * Load the cache version from the db.
      */
-    private synchronized Long loadCacheVersion(DBCollection collection) {
+    private synchronized DBObject loadCacheVersion(DBCollection collection) {
         BasicDBObject query=new BasicDBObject("_id","collectionVersion");
         DBObject obj=collection.findOne(query);
         if(obj==null) {
@@ -141,17 +888,21 @@ public class MetadataCache {
                 LOGGER.error("Cannot initialize metadata cache");
             }
         }
-        if(obj!=null) {
-            return (Long)obj.get("collectionVersion");
-        } else {
-            return null;
-        }
+        return obj;
+    }
+
+    /**
+     * Checks the collection version now, regardless of the version
+     * lookup period. Returns true if the collection version changed.
+     */
+    boolean checkCollectionVersion(DBCollection collection) {
+        return refreshCollectionVersion(collection,System.currentTimeMillis(),true);
     }
 
     private synchronized void fullRefresh(DBCollection collection,long now) {
         if(lastCacheRefreshTime+cacheTTLMsecs<now) {
-            if(!refreshCollectionVersion(collection,now,true))
-                cache.clear();
+            refreshCollectionVersion(collection,now,true);
+            invalidateAll();
             lastCacheRefreshTime=now;
         }
     }
@@ -165,10 +916,12 @@ public class MetadataCache {
         // other threads might have already initialized it
         boolean ret=false;
         if(bypassRecheck||lastVersionLookupTime+versionLookupPeriodMsecs<now) {
-            Long v=loadCacheVersion(collection);
-            if(v!=null) {
+            DBObject versionDoc=loadCacheVersion(collection);
+            if(versionDoc!=null) {
+                long v=((Number)versionDoc.get(LITERAL_COLL_VER)).longValue();
                 if(v!=expectedCollectionVersion) {
-                    cache.clear();
+                    if(!invalidateChangedEntities(versionDoc,v-expectedCollectionVersion))
+                        refreshAll();
                     expectedCollectionVersion=v;
                     ret=true;
                 }
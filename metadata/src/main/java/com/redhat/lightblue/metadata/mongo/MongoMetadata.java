@@ -87,33 +87,31 @@ public class MongoMetadata extends AbstractMetadata {
         Error.push("getEntityMetadata(" + entityName + ":" + version + ")");
         try {
             EntityMetadata md;
+            EntityInfo info = null;
             if(cache!=null) {
-                md=cache.lookup(collection,entityName,version);
-                if(md!=null)
-                    return md;
-            }
-            
-            EntityInfo info = getEntityInfo(entityName);
-            if (version == null || version.length() == 0) {
-                if (info.getDefaultVersion() == null || info.getDefaultVersion().length() == 0) {
-                    throw new IllegalArgumentException(LITERAL_VERSION);
-                } else {
-                    version = info.getDefaultVersion();
+                if (version == null || version.length() == 0) {
+                    // Resolve the default version from the cache
+                    info=cache.lookupEntityInfo(collection,entityName);
+                    if(info!=null&&info.getDefaultVersion()!=null&&info.getDefaultVersion().length()>0)
+                        version=info.getDefaultVersion();
+                }
+                if (version != null && version.length() > 0) {
+                    md=cache.lookup(collection,entityName,version);
+                    if(md!=null)
+                        return md;
                 }
             }
 
-            EntitySchema schema;
-
-            BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID + version);
-            DBObject es = new FindOneCommand(collection, query).executeAndUnwrap();
-            if (es != null) {
-                schema = mdParser.parseEntitySchema(es);
-            } else {
-                throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
+            // Metadata loaded before the entity changes is not cached after it
+            long changeCount = cache == null ? 0 : cache.getChangeCount(entityName);
+            if (info == null) {
+                info = getEntityInfo(entityName);
+                if(cache!=null&&info!=null)
+                    cache.putEntityInfo(info,changeCount);
             }
-            md=new EntityMetadata(info, schema);
+            md=loadEntityMetadata(info, entityName, version);
             if(cache!=null)
-                cache.put(md);
+                cache.put(md,changeCount);
             return md;
         } catch (Error | IllegalArgumentException e) {
             // rethrow lightblue error or IllegalArgumentException
@@ -125,6 +123,50 @@ public class MongoMetadata extends AbstractMetadata {
         }
     }
 
+    private EntityMetadata loadEntityMetadata(EntityInfo info,
+                                              String entityName,
+                                              String version) {
+        if (version == null || version.length() == 0) {
+            if (info.getDefaultVersion() == null || info.getDefaultVersion().length() == 0) {
+                throw new IllegalArgumentException(LITERAL_VERSION);
+            } else {
+                version = info.getDefaultVersion();
+            }
+        }
+
+        EntitySchema schema;
+
+        BasicDBObject query = new BasicDBObject(LITERAL_ID, entityName + BSONParser.DELIMITER_ID + version);
+        DBObject es = new FindOneCommand(collection, query).executeAndUnwrap();
+        if (es != null) {
+            schema = mdParser.parseEntitySchema(es);
+        } else {
+            throw Error.get(MongoMetadataConstants.ERR_UNKNOWN_VERSION, entityName + ":" + version);
+        }
+        return new EntityMetadata(info, schema);
+    }
+
+    /**
+     * Starts refreshing the metadata cache in a background thread,
+     * so metadata lookups never wait for the cache validity checks
+     */
+    public void startCacheRefresh() {
+        if (cache != null) {
+            cache.startBackgroundRefresh(collection, new MetadataCache.Loader() {
+                @Override
+                public EntityMetadata load(String entityName, String version) {
+                    EntityInfo info = getEntityInfo(entityName);
+                    return info == null ? null : loadEntityMetadata(info, entityName, version);
+                }
+
+                @Override
+                public EntityInfo loadInfo(String entityName) {
+                    return getEntityInfo(entityName);
+                }
+            });
+        }
+    }
+
     @Override
     public EntityInfo getEntityInfo(String entityName) {
         if (entityName == null || entityName.length() == 0) {
@@ -312,7 +354,7 @@ public class MongoMetadata extends AbstractMetadata {
                     throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
                 }
                 if(cache!=null)
-                    cache.updateCollectionVersion(collection);
+                    cache.updateCollectionVersion(collection,md.getName(),md.getVersion().getValue());
             } catch (Error e) {
                 // rethrow lightblue error
                 throw e;
@@ -372,7 +414,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw analyzeException(e, MongoMetadataConstants.ERR_DB_ERROR);
             }
             if(cache!=null)
-                cache.updateCollectionVersion(collection);
+                cache.updateCollectionVersion(collection,ei.getName(),null);
         } catch (Error e) {
             // rethrow lightblue error
             throw e;
@@ -461,7 +503,7 @@ public class MongoMetadata extends AbstractMetadata {
                 listener.afterCreateNewSchema(this, md);
             }
             if(cache!=null)
-                cache.updateCollectionVersion(collection);
+                cache.updateCollectionVersion(collection,md.getName(),md.getVersion().getValue());
         } catch (MongoException.DuplicateKey dke) {
             throw Error.get(MongoMetadataConstants.ERR_DUPLICATE_METADATA, ver.getValue());
         } catch (Error e) {
@@ -535,7 +577,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw Error.get(MongoMetadataConstants.ERR_DB_ERROR, error);
             }
             if(cache!=null)
-                cache.updateCollectionVersion(collection);
+                cache.updateCollectionVersion(collection,entityName,version);
         } catch (Error e) {
             // rethrow lightblue error
             throw e;
@@ -574,7 +616,7 @@ public class MongoMetadata extends AbstractMetadata {
                 throw Error.get(MongoMetadataConstants.ERR_DB_ERROR, error);
             }
             if(cache!=null)
-                cache.updateCollectionVersion(collection);
+                cache.updateCollectionVersion(collection,entityName,null);
         } catch (Exception e) {
             LOGGER.error("Error during delete", e);
             throw analyzeException(e, MongoMetadataConstants.ERR_DB_ERROR);
@@ -49,6 +49,12 @@ public class CacheTest {
 
     private static final EmbeddedMongo mongo = EmbeddedMongo.getInstance();
 
+    /**
+     * How long to wait for the background refresh. Generous, so the
+     * tests do not fail on a slow build machine
+     */
+    private static final long REFRESH_TIMEOUT_MSECS=10000l;
+
     private MongoMetadata md;
     private MetadataCache cache=new MetadataCache();
 
@@ -169,6 +175,224 @@ public class CacheTest {
         // Lookup will fail,  detect change
         Assert.assertNull(cache.lookup(coll,"testEntity","1.0.0"));
     }
-    
 
+    private EntityMetadata entity(String name,String version) {
+        EntityMetadata e = new EntityMetadata(name);
+        e.setVersion(new Version(version, null, "some text blah blah"));
+        e.setStatus(MetadataStatus.ACTIVE);
+        e.setDataStore(new MongoDataStore(null, null, "testCollection"));
+        e.getFields().put(new SimpleField("field1", StringType.TYPE));
+        return e;
+    }
+
+    @Test
+    public void evictionTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        c.setMaxSize(2);
+        // The first lookup initializes the cache
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        c.put(entity("e1","1.0.0"));
+        c.put(entity("e2","1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e1","1.0.0"));
+        // e2 is the least recently used
+        c.put(entity("e3","1.0.0"));
+        Assert.assertEquals(2,c.size());
+        Assert.assertEquals(1,c.getEvictionCount());
+        Assert.assertNull(c.lookup(coll,"e2","1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e1","1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e3","1.0.0"));
+        Assert.assertEquals(3,c.getHitCount());
+        Assert.assertEquals(2,c.getMissCount());
+    }
+
+    @Test
+    public void batchEvictionTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        c.setMaxSize(20);
+        Assert.assertNull(c.lookup(coll,"e0","1.0.0"));
+        for(int i=0;i<20;i++)
+            c.put(entity("e"+i,"1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e0","1.0.0"));
+        // A tenth of the cache is freed along with the least recently used entry
+        c.put(entity("e20","1.0.0"));
+        Assert.assertEquals(18,c.size());
+        Assert.assertEquals(3,c.getEvictionCount());
+        Assert.assertNotNull(c.lookup(coll,"e0","1.0.0"));
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e20","1.0.0"));
+        // Entity info lookups are counted separately
+        Assert.assertNull(c.lookupEntityInfo(coll,"e0"));
+        Assert.assertEquals(1,c.getInfoMissCount());
+        Assert.assertEquals(3,c.getHitCount());
+        Assert.assertEquals(2,c.getMissCount());
+    }
+
+    @Test
+    public void softTierTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        c.setMaxSize(1);
+        c.setSoftReferences(true);
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        EntityMetadata e1=entity("e1","1.0.0");
+        c.put(e1);
+        c.put(entity("e2","1.0.0"));
+        Assert.assertEquals(1,c.size());
+        // e1 is still reachable, so it is in the soft tier
+        Assert.assertSame(e1,c.lookup(coll,"e1","1.0.0"));
+        Assert.assertEquals(1,c.getSoftHitCount());
+    }
+
+    @Test
+    public void stalePutTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        long n=c.getChangeCount("e1");
+        // e1 changes while it is being loaded
+        c.updateCollectionVersion(coll,"e1","1.0.0");
+        EntityMetadata e1=entity("e1","1.0.0");
+        Assert.assertFalse(c.put(e1,n));
+        Assert.assertFalse(c.putEntityInfo(e1.getEntityInfo(),n));
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        Assert.assertNull(c.lookupEntityInfo(coll,"e1"));
+        // Other entities are not affected
+        n=c.getChangeCount("e2");
+        c.updateCollectionVersion(coll,"e1","1.0.0");
+        Assert.assertTrue(c.put(entity("e2","1.0.0"),n));
+        Assert.assertNotNull(c.lookup(coll,"e2","1.0.0"));
+        // Unless the whole cache is invalidated
+        n=c.getChangeCount("e3");
+        c.invalidateAll();
+        Assert.assertFalse(c.put(entity("e3","1.0.0"),n));
+        Assert.assertNull(c.lookup(coll,"e3","1.0.0"));
+    }
+
+    @Test
+    public void defaultVersionTest() throws Exception {
+        EntityMetadata e = entity("testEntity","1.0.0");
+        e.getEntityInfo().setDefaultVersion("1.0.0");
+        md.createNewMetadata(e);
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+
+        Assert.assertEquals("1.0.0",md.getEntityMetadata("testEntity",null).getVersion().getValue());
+        // Remove metadata without changing the collection version, lookups must be served from the cache
+        coll.remove(new BasicDBObject("name","testEntity"));
+        Assert.assertEquals("1.0.0",md.getEntityMetadata("testEntity",null).getVersion().getValue());
+        Assert.assertEquals("1.0.0",md.getEntityMetadata("testEntity","").getVersion().getValue());
+    }
+
+    @Test
+    public void changePublishTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        DBCollection changes=mongo.getDB().getCollection("metadataChanges");
+        // No polling, changes are received only through the change collection
+        MetadataCache other=new MetadataCache();
+        other.setCacheParams(60000l,600000l);
+        try {
+            cache.setChangeCollection(changes);
+            other.setChangeCollection(changes);
+            for(int i=0;i<100&&!other.isPushActive();i++)
+                Thread.sleep(10);
+            Assert.assertTrue(other.isPushActive());
+            other.lookup(coll,"e1","1.0.0");
+            other.put(entity("e1","1.0.0"));
+            other.put(entity("e2","1.0.0"));
+            Assert.assertNotNull(other.lookup(coll,"e1","1.0.0"));
+
+            cache.updateCollectionVersion(coll,"e1","1.0.0");
+            for(int i=0;i<100&&other.lookup(coll,"e1","1.0.0")!=null;i++)
+                Thread.sleep(10);
+            Assert.assertNull(other.lookup(coll,"e1","1.0.0"));
+            Assert.assertNotNull(other.lookup(coll,"e2","1.0.0"));
+        } finally {
+            other.close();
+            cache.close();
+        }
+    }
+
+    @Test
+    public void entityInvalidationTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        // Versions are checked explicitly, not by lookups
+        c.setCacheParams(60000l,600000l);
+        MetadataCache other=new MetadataCache();
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        c.put(entity("e1","1.0.0"));
+        c.put(entity("e1","2.0.0"));
+        c.put(entity("e2","1.0.0"));
+        // Another node changes e1
+        other.updateCollectionVersion(coll,"e1","2.0.0");
+        Assert.assertTrue(c.checkCollectionVersion(coll));
+        Assert.assertNull(c.lookup(coll,"e1","1.0.0"));
+        Assert.assertNull(c.lookup(coll,"e1","2.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e2","1.0.0"));
+        // A change not attributed to an entity clears everything
+        coll.update(new BasicDBObject("_id","collectionVersion"),new BasicDBObject("$inc",new BasicDBObject("collectionVersion",1)));
+        Assert.assertTrue(c.checkCollectionVersion(coll));
+        Assert.assertNull(c.lookup(coll,"e2","1.0.0"));
+        // A change made by this node is not seen as a remote change
+        c.updateCollectionVersion(coll,"e1","1.0.0");
+        c.put(entity("e1","1.0.0"));
+        c.put(entity("e2","1.0.0"));
+        Assert.assertFalse(c.checkCollectionVersion(coll));
+        Assert.assertNotNull(c.lookup(coll,"e1","1.0.0"));
+        Assert.assertNotNull(c.lookup(coll,"e2","1.0.0"));
+    }
+
+    @Test
+    public void backgroundRefreshTest() throws Exception {
+        DBCollection coll=mongo.getDB().getCollection(MongoMetadata.DEFAULT_METADATA_COLLECTION);
+        MetadataCache c=new MetadataCache();
+        c.setCacheParams(20l,60000l);
+        MetadataCache other=new MetadataCache();
+        // Initialize the collection version
+        other.updateCollectionVersion(coll,"e0",null);
+        EntityMetadata e1=entity("e1","1.0.0");
+        c.put(e1);
+        c.put(entity("e2","1.0.0"));
+        try {
+            c.startBackgroundRefresh(coll,new MetadataCache.Loader() {
+                    @Override
+                    public EntityMetadata load(String entityName,String version) {
+                        // e2 is deleted
+                        return "e2".equals(entityName)?null:entity(entityName,version);
+                    }
+
+                    @Override
+                    public EntityInfo loadInfo(String entityName) {
+                        return null;
+                    }
+                });
+            Assert.assertTrue(c.isBackgroundRefreshActive());
+            // The initial refresh reloads everything
+            long deadline=System.currentTimeMillis()+REFRESH_TIMEOUT_MSECS;
+            while(c.getReloadCount()<2&&System.currentTimeMillis()<deadline)
+                Thread.sleep(10);
+            Assert.assertTrue(c.getReloadCount()>=2);
+            EntityMetadata reloaded=c.lookup(coll,"e1","1.0.0");
+            Assert.assertNotNull(reloaded);
+            Assert.assertNotSame(e1,reloaded);
+            Assert.assertNull(c.lookup(coll,"e2","1.0.0"));
+
+            // Another node changes e1. Lookups keep returning the
+            // old metadata until the new one is loaded
+            long reloads=c.getReloadCount();
+            other.updateCollectionVersion(coll,"e1","1.0.0");
+            deadline=System.currentTimeMillis()+REFRESH_TIMEOUT_MSECS;
+            while(c.getReloadCount()==reloads&&System.currentTimeMillis()<deadline) {
+                Assert.assertNotNull(c.lookup(coll,"e1","1.0.0"));
+                Thread.sleep(10);
+            }
+            Assert.assertTrue(c.getReloadCount()>reloads);
+            Assert.assertNotSame(reloaded,c.lookup(coll,"e1","1.0.0"));
+            Assert.assertNotNull(c.lookup(coll,"e1","1.0.0"));
+        } finally {
+            c.close();
+        }
+        Assert.assertFalse(c.isBackgroundRefreshActive());
+    }
 }